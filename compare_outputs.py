@@ -1,8 +1,11 @@
 #!/usr/bin/env python3
+import sys
+
 
 def main():
-    exp_path = "expected_output.txt"
-    act_path = "output.txt"
+    # Optional: compare_outputs.py [expected] [actual]
+    exp_path = sys.argv[1] if len(sys.argv) > 1 else "expected_output.txt"
+    act_path = sys.argv[2] if len(sys.argv) > 2 else "output.txt"
 
     with open(exp_path) as fe, open(act_path) as fa:
         exp = [l.rstrip("\n") for l in fe]
@@ -0,0 +1,4 @@
+#!/bin/bash
+# Let the optional postgres-replica service (docker-compose --profile replicas)
+# stream from this server with pg_basebackup.
+echo "host replication all all scram-sha-256" >> "$PGDATA/pg_hba.conf"
@@ -1,3 +1,5 @@
 CREATE DATABASE frag_0;
 CREATE DATABASE frag_1;
-CREATE DATABASE frag_2;
\ No newline at end of file
+CREATE DATABASE frag_2;
+-- Spare fragment for online resharding (FragmentClient.addFragment(3))
+CREATE DATABASE frag_3;
@@ -0,0 +1,81 @@
+package bench;
+
+import java.sql.*;
+import fragment.FragmentClient;
+import fragment.SchemaManager;
+
+/**
+ * Local PostgreSQL stand-in for the benchmarks.
+ *
+ * A layout is either "single" (the single_db baseline, driven through a one-fragment
+ * client so both sides pay the same client overhead) or a fragment count, which uses
+ * databases frag_0 .. frag_{n-1}. Missing databases are created and every table is
+ * recreated from scratch, so runs never depend on earlier state.
+ *
+ * Override the server with -Dsimufrag.jdbcBase=jdbc:postgresql://host:port/
+ * and -Dsimufrag.user / -Dsimufrag.password.
+ */
+final class BenchDatabase {
+
+    static final String BASE_URL = System.getProperty("simufrag.jdbcBase", "jdbc:postgresql://localhost:5432/");
+    static final String USER = System.getProperty("simufrag.user", "user");
+    static final String PASSWORD = System.getProperty("simufrag.password", "password");
+
+    private BenchDatabase() {
+    }
+
+    static int fragmentCount(String layout) {
+        return "single".equals(layout) ? 1 : Integer.parseInt(layout);
+    }
+
+    /**
+     * Drop and recreate the schema on every database of the layout.
+     */
+    static void reset(String layout) throws SQLException {
+        for (String db : databases(layout)) {
+            ensureDatabase(db);
+            try (Connection conn = DriverManager.getConnection(BASE_URL + db, USER, PASSWORD)) {
+                SchemaManager.recreateSchema(conn);
+            }
+        }
+    }
+
+    static FragmentClient openClient(String layout) {
+        FragmentClient client = new FragmentClient(fragmentCount(layout));
+        if ("single".equals(layout)) {
+            client.setConnectionInfo(BASE_URL + "single_db", USER, PASSWORD);
+        } else {
+            client.setConnectionInfo(BASE_URL + "frag_%d", USER, PASSWORD);
+        }
+        client.setupConnections();
+        return client;
+    }
+
+    private static String[] databases(String layout) {
+        if ("single".equals(layout)) {
+            return new String[] { "single_db" };
+        }
+        String[] dbs = new String[fragmentCount(layout)];
+        for (int i = 0; i < dbs.length; i++) {
+            dbs[i] = "frag_" + i;
+        }
+        return dbs;
+    }
+
+    private static void ensureDatabase(String db) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(BASE_URL + "postgres", USER, PASSWORD)) {
+            PreparedStatement pstmt = conn.prepareStatement("SELECT 1 FROM pg_database WHERE datname = ?");
+            pstmt.setString(1, db);
+            boolean exists;
+            try (ResultSet rs = pstmt.executeQuery()) {
+                exists = rs.next();
+            }
+            pstmt.close();
+            if (!exists) {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("CREATE DATABASE " + db);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import fragment.FragmentClient;
+
+/**
+ * Latency of each FragmentClient operation against a preloaded data set,
+ * for the single-DB baseline and for 1/3/8/16 fragments.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class FragmentClientBenchmark {
+
+    static final int STUDENTS = 1000;
+    static final String[] LOADED_COURSES = { "CS101", "CS102", "MA101" };
+
+    @Param({"single", "1", "3", "8", "16"})
+    String layout;
+
+    FragmentClient client;
+    String[] studentIds;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchDatabase.reset(layout);
+        client = BenchDatabase.openClient(layout);
+
+        studentIds = new String[STUDENTS];
+        for (int i = 0; i < STUDENTS; i++) {
+            studentIds[i] = String.format("IMT_2023_%04d", i + 1);
+            client.insertStudent(studentIds[i], "Student_" + (i + 1), 18 + i % 7, "student_" + (i + 1) + "@imt.edu");
+            for (int c = 0; c < LOADED_COURSES.length; c++) {
+                client.insertGrade(studentIds[i], LOADED_COURSES[c], 50 + (i * 7 + c * 13) % 50);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.closeConnections();
+    }
+
+    /**
+     * Per-thread cursor so every call touches a different student.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+        long inserted;
+
+        String nextStudent(FragmentClientBenchmark bench) {
+            return bench.studentIds[next++ % STUDENTS];
+        }
+    }
+
+    @Benchmark
+    public void insertStudent(Cursor cursor) {
+        String id = "BENCH_" + Thread.currentThread().getId() + "_" + cursor.inserted++;
+        client.insertStudent(id, "Bench", 20, id + "@imt.edu");
+    }
+
+    /**
+     * PH101 is never loaded, so insert + delete leaves the data set unchanged.
+     */
+    @Benchmark
+    public void insertAndDeleteGrade(Cursor cursor) {
+        String id = cursor.nextStudent(this);
+        client.insertGrade(id, "PH101", 75);
+        client.deleteStudentFromCourse(id, "PH101");
+    }
+
+    @Benchmark
+    public void updateGrade(Cursor cursor) {
+        client.updateGrade(cursor.nextStudent(this), "CS101", 60 + cursor.next % 40);
+    }
+
+    @Benchmark
+    public String getStudentProfile(Cursor cursor) {
+        return client.getStudentProfile(cursor.nextStudent(this));
+    }
+
+    @Benchmark
+    public String getAvgScoreByDept() {
+        return client.getAvgScoreByDept();
+    }
+
+    @Benchmark
+    public String getAllStudentsWithMostCourses() {
+        return client.getAllStudentsWithMostCourses();
+    }
+}
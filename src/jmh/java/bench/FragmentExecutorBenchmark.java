@@ -0,0 +1,89 @@
+package bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.*;
+import fragment.FragmentExecutor;
+import fragment.ScatterGather;
+
+/**
+ * Scatter-gather latency over many fragments for each FragmentExecutor.
+ *
+ * Each fragment call parks for callLatencyMicros, standing in for a JDBC round trip
+ * that blocks its thread, so no database is needed for 64+ fragments. Run with
+ * -t N to add concurrent callers. The build targets Java 17, so the virtual-thread
+ * executor is not a default parameter; on a Java 21+ JVM add it with
+ * -p executor=platform-16,platform-per-fragment,virtual.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class FragmentExecutorBenchmark {
+
+    @Param({"64", "128", "256"})
+    int fragments;
+
+    /**
+     * platform-16: fixed pool smaller than the fan-out, calls queue for a thread.
+     * platform-per-fragment: one OS thread per fragment, what blocking fan-out needs.
+     * virtual: one virtual thread per call, Java 21+ only (pass it with -p).
+     */
+    @Param({"platform-16", "platform-per-fragment"})
+    String executor;
+
+    @Param({"1000"})
+    long callLatencyMicros;
+
+    FragmentExecutor fragmentExecutor;
+    ScatterGather scatterGather;
+    List<Integer> fragmentIds;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        switch (executor) {
+            case "platform-16":
+                fragmentExecutor = FragmentExecutor.platform(16);
+                break;
+            case "platform-per-fragment":
+                fragmentExecutor = FragmentExecutor.platform(fragments);
+                break;
+            case "virtual":
+                if (!FragmentExecutor.virtualThreadsAvailable()) {
+                    throw new IllegalStateException("executor=virtual needs a Java 21+ JVM");
+                }
+                fragmentExecutor = FragmentExecutor.virtual();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown executor: " + executor);
+        }
+        scatterGather = new ScatterGather(fragmentExecutor);
+
+        fragmentIds = new ArrayList<>();
+        for (int i = 0; i < fragments; i++) {
+            fragmentIds.add(i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fragmentExecutor.shutdown();
+    }
+
+    @Benchmark
+    public long fanOut() throws Exception {
+        long callNanos = TimeUnit.MICROSECONDS.toNanos(callLatencyMicros);
+        List<Integer> partials = scatterGather.gather(fragmentIds, fragmentId -> {
+            LockSupport.parkNanos(callNanos);
+            return fragmentId;
+        });
+
+        long merged = 0;
+        for (int partial : partials) {
+            merged += partial;
+        }
+        return merged;
+    }
+}
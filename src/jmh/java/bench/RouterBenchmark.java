@@ -0,0 +1,42 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import fragment.ConsistentHashRouter;
+import fragment.ModuloRouter;
+import fragment.Router;
+
+/**
+ * Cost of one routing decision per strategy and fragment count.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class RouterBenchmark {
+
+    @Param({"1", "3", "8", "16"})
+    int fragments;
+
+    @Param({"modulo", "consistent"})
+    String strategy;
+
+    private Router router;
+    private String[] keys;
+    private int next;
+
+    @Setup
+    public void setup() {
+        router = "consistent".equals(strategy) ? new ConsistentHashRouter(fragments) : new ModuloRouter(fragments);
+        keys = new String[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = String.format("IMT_2023_%03d", i + 1);
+        }
+    }
+
+    @Benchmark
+    public int getFragmentId() {
+        return router.getFragmentId(keys[next++ & (keys.length - 1)]);
+    }
+}
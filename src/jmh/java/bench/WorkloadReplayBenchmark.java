@@ -0,0 +1,67 @@
+package bench;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import fragment.Command;
+import fragment.CommandReader;
+import fragment.FragmentClient;
+import fragment.ModuloRouter;
+import fragment.WorkloadClient;
+
+/**
+ * Replays the whole workload.txt from an empty schema, the same work Driver and
+ * SingleDbDriver time with System.currentTimeMillis(). The "embedded" layout runs
+ * FragmentClient on three in-memory fragments and needs no database.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class WorkloadReplayBenchmark {
+
+    @Param({"single", "1", "3", "8", "16", "embedded"})
+    String layout;
+
+    List<Command> commands;
+    WorkloadClient client;
+
+    @Setup(Level.Trial)
+    public void loadWorkload() throws IOException {
+        commands = new ArrayList<>();
+        InputStream in = WorkloadReplayBenchmark.class.getClassLoader().getResourceAsStream("workload.txt");
+        try (CommandReader reader = new CommandReader(in)) {
+            Command command;
+            while ((command = reader.next()) != null) {
+                commands.add(command.copy());
+            }
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void resetDatabase() throws Exception {
+        if ("embedded".equals(layout)) {
+            client = FragmentClient.embedded(new ModuloRouter(3));
+            return;
+        }
+        BenchDatabase.reset(layout);
+        client = BenchDatabase.openClient(layout);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeClient() {
+        if (client instanceof FragmentClient) {
+            ((FragmentClient) client).closeConnections();
+        }
+    }
+
+    @Benchmark
+    public void replay(Blackhole blackhole) {
+        for (Command command : commands) {
+            blackhole.consume(command.execute(client));
+        }
+    }
+}
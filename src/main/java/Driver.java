@@ -1,6 +1,20 @@
 import java.io.*;
-import java.util.Scanner;
+import java.sql.SQLException;
+import java.util.*;
+import fragment.CircuitBreaker;
+import fragment.Command;
+import fragment.CommandReader;
+import fragment.ConsistentHashRouter;
 import fragment.FragmentClient;
+import fragment.FragmentExecutor;
+import fragment.FragmentTopology;
+import fragment.FragmentTransaction;
+import fragment.ModuloRouter;
+import fragment.PoolConfig;
+import fragment.ReadConsistency;
+import fragment.Router;
+import fragment.SqlStates;
+import fragment.WorkloadPipeline;
 
 public class Driver {
     static {
@@ -10,90 +24,340 @@ public class Driver {
     private static final int NUM_FRAGMENTS = 3;
 
     public static void main(String[] args) {
-        FragmentClient client = new FragmentClient(NUM_FRAGMENTS);
+        // -Dsimufrag.router=consistent selects the consistent-hash ring
+        Router router = "consistent".equals(System.getProperty("simufrag.router"))
+                ? new ConsistentHashRouter(NUM_FRAGMENTS)
+                : new ModuloRouter(NUM_FRAGMENTS);
+
+        // Optional fault handling: -Dsimufrag.statementTimeoutMs=N bounds every statement,
+        // and fragments failing repeatedly are skipped until they recover
+        PoolConfig poolConfig = PoolConfig.defaults();
+        long statementTimeoutMs = Long.getLong("simufrag.statementTimeoutMs", 0L);
+        if (statementTimeoutMs > 0) {
+            poolConfig = poolConfig.withTimeouts(statementTimeoutMs, poolConfig.getConnectTimeoutMillis());
+        }
 
         try {
+            // -Dsimufrag.store=embedded keeps the fragments in process memory, no database needed
+            FragmentClient client = "embedded".equals(System.getProperty("simufrag.store"))
+                    ? FragmentClient.embedded(router)
+                    : new FragmentClient(router, poolConfig);
+
+            // Optional replicas: -Dsimufrag.topology=FILE (see topology.example.properties)
+            //   [-Dsimufrag.readConsistency=read_your_writes|eventual|primary]
+            String topologyFile = System.getProperty("simufrag.topology");
+            if (topologyFile != null) {
+                client.setTopology(FragmentTopology.load(topologyFile));
+                client.setReadConsistency(ReadConsistency.valueOf(
+                        System.getProperty("simufrag.readConsistency", "read_your_writes").toUpperCase()));
+            }
+
             System.out.println("Initializing connections...");
             client.setupConnections();
 
-           InputStream in = Driver.class
-                   .getClassLoader()
-                   .getResourceAsStream("workload.txt");
+            // Fan-out executor: -Dsimufrag.executor=virtual|platform (virtual needs Java 21+)
+            String executor = System.getProperty("simufrag.executor");
+            if (executor != null) {
+                client.setFragmentExecutor(FragmentExecutor.named(executor, NUM_FRAGMENTS));
+            }
+
+            // Optional write batching: -Dsimufrag.batchSize=N [-Dsimufrag.lingerMs=M]
+            int batchSize = Integer.getInteger("simufrag.batchSize", 0);
+            if (batchSize > 0) {
+                client.enableWriteBatching(batchSize, Long.getLong("simufrag.lingerMs", 5L));
+                System.out.println("Write batching enabled (batch size " + batchSize + ")");
+            }
+
+            // Optional local write journal: -Dsimufrag.journal=DIR [-Dsimufrag.journalBatch=N]
+            // acknowledges writes once they are on local disk and applies them in the background
+            String journalDir = System.getProperty("simufrag.journal");
+            if (journalDir != null) {
+                client.enableWriteJournal(journalDir, Integer.getInteger("simufrag.journalBatch", 256));
+                System.out.println("Write journal enabled (" + journalDir + ")");
+            }
+
+            // Optional client-side profile cache: -Dsimufrag.profileCache=N
+            int profileCacheSize = Integer.getInteger("simufrag.profileCache", 0);
+            if (profileCacheSize > 0) {
+                client.enableProfileCache(profileCacheSize);
+            }
+
+            // Optional incremental READ_SCORE: -Dsimufrag.incrementalAggregates=true|verify
+            String incremental = System.getProperty("simufrag.incrementalAggregates");
+            if (incremental != null) {
+                client.enableIncrementalAggregates("verify".equals(incremental));
+            }
 
+            // Optional load monitoring: -Dsimufrag.loadMonitor=report|mitigate
+            //   [-Dsimufrag.loadWindowMs=N] [-Dsimufrag.imbalanceThreshold=X]
+            String loadMonitor = System.getProperty("simufrag.loadMonitor");
+            if (loadMonitor != null) {
+                client.enableLoadMonitoring(Long.getLong("simufrag.loadWindowMs", 5000L),
+                        Double.parseDouble(System.getProperty("simufrag.imbalanceThreshold", "1.5")),
+                        "mitigate".equals(loadMonitor));
+            }
+
+            // Optional hedged READ_PROFILE: -Dsimufrag.hedgeMs=N (0 hedges at the fragment's p95)
+            String hedgeMs = System.getProperty("simufrag.hedgeMs");
+            if (hedgeMs != null) {
+                client.enableHedgedReads(Long.parseLong(hedgeMs));
+            }
+
+            // Optional cross-fragment transactions: -Dsimufrag.txLog=FILE enables two-phase
+            // commit, logging decisions to FILE and resolving what a previous run left prepared
+            String txLog = System.getProperty("simufrag.txLog");
+            if (txLog != null) {
+                client.enableTwoPhaseCommit(txLog);
+            }
+
+            // Optional periodic reload of the Course catalog: -Dsimufrag.courseRefreshMs=N
+            long courseRefreshMs = Long.getLong("simufrag.courseRefreshMs", 0L);
+            if (courseRefreshMs > 0) {
+                client.enableCourseCatalogRefresh(courseRefreshMs);
+            }
+
+            // Optional metrics: -Dsimufrag.metrics=text|json [-Dsimufrag.metricsIntervalMs=N], -Dsimufrag.jmx=true
+            String metricsFormat = System.getProperty("simufrag.metrics");
+            if (metricsFormat != null) {
+                client.startMetricsReporting(Long.getLong("simufrag.metricsIntervalMs", 5000L), System.out,
+                        "json".equals(metricsFormat));
+            }
+            if (Boolean.getBoolean("simufrag.jmx")) {
+                client.getMetrics().registerMBeans();
+            }
+
+           InputStream in = openWorkload();
            if (in == null) {
                System.err.println("Error: workload.txt not found on classpath.");
                return;
            }
-           Scanner scanner = new Scanner(in);
-           PrintWriter outputWriter = new PrintWriter("output.txt");
+           CommandReader reader = new CommandReader(in);
+           PrintWriter outputWriter = new PrintWriter(System.getProperty("simufrag.output", "output.txt"));
+
+           // Optional pipelined execution: -Dsimufrag.async=MAX_IN_FLIGHT
+           int maxInFlight = Integer.getInteger("simufrag.async", 0);
+           WorkloadPipeline pipeline = maxInFlight > 0
+                   ? new WorkloadPipeline(client, maxInFlight, outputWriter::println)
+                   : null;
+
+           // Optional coalescing of consecutive READ_PROFILE lines: -Dsimufrag.profileBatch=N
+           int profileBatch = pipeline == null ? Integer.getInteger("simufrag.profileBatch", 0) : 0;
+           List<String> pendingProfiles = new ArrayList<>();
+
+           // Optional cross-check: -Dsimufrag.reference=embedded runs every line on in-memory
+           // fragments too and reports answers that differ (fragments must start out empty)
+           FragmentClient reference = pipeline == null && "embedded".equals(System.getProperty("simufrag.reference"))
+                   ? FragmentClient.embedded(router)
+                   : null;
+           int mismatches = 0;
+
+           // Optional grouping of consecutive writes into one transaction: -Dsimufrag.txGroup=N.
+           // Without -Dsimufrag.txLog a group ends where the writes move to another fragment;
+           // a group rejected for bad data is replayed one write at a time, as without grouping
+           int txGroup = pipeline == null ? Integer.getInteger("simufrag.txGroup", 0) : 0;
+           boolean crossFragmentGroups = txLog != null;
+           List<Command> group = new ArrayList<>();
+           int groupFragment = -1;
 
            System.out.println("Processing workload...");
            long startTime = System.currentTimeMillis();
 
-           while (scanner.hasNextLine()) {
-               String line = scanner.nextLine().trim();
-               if (line.isEmpty()) continue;
+           Command command;
+           while ((command = reader.next()) != null) {
+               if (pipeline != null) {
+                   // The reader reuses its command, the pipeline keeps it until it runs
+                   pipeline.submit(command.copy());
+                   continue;
+               }
+               String expected = reference != null ? command.execute(reference) : null;
 
-               String[] parts = line.split(",");
-               String command = parts[0];
+               if (txGroup > 1) {
+                   if (isWrite(command)) {
+                       // Profiles queued before this write must not see it
+                       writeProfiles(client, pendingProfiles, outputWriter);
+                       int fragmentId = client.getFragmentId(command.getStudentId());
+                       if (!crossFragmentGroups && fragmentId != groupFragment) {
+                           commitGroup(client, group);
+                       }
+                       // The reader reuses its command, the group keeps it until it commits
+                       group.add(command.copy());
+                       groupFragment = fragmentId;
+                       if (group.size() >= txGroup) {
+                           commitGroup(client, group);
+                       }
+                       continue;
+                   }
+                   // Anything else may read the group's writes
+                   commitGroup(client, group);
+               }
+
+               if (profileBatch > 1) {
+                   // Reads between the same two writes can be answered together
+                   if (command.getType() == Command.Type.READ_PROFILE) {
+                       pendingProfiles.add(command.getStudentId());
+                       if (pendingProfiles.size() >= profileBatch) {
+                           writeProfiles(client, pendingProfiles, outputWriter);
+                       }
+                       continue;
+                   }
+                   writeProfiles(client, pendingProfiles, outputWriter);
+               }
 
                try {
-                   switch (command) {
-                       case "INSERT_STUDENT":
-                           client.insertStudent(
-                                   parts[1], parts[2],
-                                   Integer.parseInt(parts[3]), parts[4]);
-                           break;
-
-                       case "INSERT_GRADE":
-                           client.insertGrade(
-                                   parts[1], parts[2],
-                                   Integer.parseInt(parts[3]));
-                           break;
-
-                       case "UPDATE_GRADE":
-                           client.updateGrade(
-                                   parts[1], parts[2],
-                                   Integer.parseInt(parts[3]));
-                           break;
-
-                       case "DELETE_STUDENT_COURSE":
-                           client.deleteStudentFromCourse(parts[1], parts[2]);
-                           break;
-
-                       case "READ_PROFILE":
-                           String profile = client.getStudentProfile(parts[1]);
-                           outputWriter.println(profile != null ? profile : "NULL");
-                           break;
-
-                       case "READ_SCORE":
-                           String gpa = client.getAvgScoreByDept();
-                           outputWriter.println(gpa != null ? gpa : "NULL");
-                           break;
-
-                       case "READ_ALL":
-                           String top = client.getAllStudentsWithMostCourses();
-                           outputWriter.println(top != null ? top : "NULL");
-                           break;
-
-                       default:
-                           outputWriter.println("ERROR: Unknown command " + command);
+                   String result = command.execute(client);
+                   if (result != null) {
+                       outputWriter.println(result);
+                   }
+                   if (reference != null && !Objects.equals(expected, result) && mismatches++ < 10) {
+                       System.out.println("Mismatch on " + command.getType() + ": " + result + " (reference " + expected + ")");
                    }
                } catch (Exception e) {
                    outputWriter.println("ERROR: " + e.getMessage());
                }
            }
 
+           writeProfiles(client, pendingProfiles, outputWriter);
+           commitGroup(client, group);
+           if (pipeline != null) {
+               pipeline.close();
+           }
+
            long endTime = System.currentTimeMillis();
            System.out.println("Workload finished in " + (endTime - startTime) + "ms");
+           if (client.getProfileCache() != null) {
+               System.out.println("Profile cache: " + client.getProfileCache());
+           }
+           if (client.getLoadMonitor() != null && client.getLoadMonitor().getLastReport() != null) {
+               System.out.print(client.getLoadMonitor().getLastReport());
+           }
+           if (topologyFile != null) {
+               System.out.println("Replica reads: " + client.getReplicaStats().values());
+           }
+           if (hedgeMs != null) {
+               System.out.println("Hedged reads: " + client.getHedgedReads() + " (" + client.getHedgeWins() + " won by the hedge)");
+           }
+           if (!client.getFragmentHealth().values().stream().allMatch(h -> h == CircuitBreaker.State.CLOSED)) {
+               System.out.println("Fragment health: " + client.getFragmentHealth());
+           }
+           if (journalDir != null) {
+               System.out.println("Journal: " + client.getWriteJournal());
+           }
+           if (txLog != null) {
+               System.out.println("Transactions: " + client.getTransactionStats());
+           }
+           if (reference != null) {
+               System.out.println("Reference mismatches: " + mismatches);
+           }
+           if ("verify".equals(incremental)) {
+               System.out.println("Incremental aggregate mismatches: " + client.getAggregateMismatches());
+           }
+           if (metricsFormat != null) {
+               System.out.println("json".equals(metricsFormat)
+                       ? client.getMetrics().getJsonReport()
+                       : client.getMetrics().getTextReport());
+           }
 
-           scanner.close();
+           reader.close();
            outputWriter.close();
            client.closeConnections();
+           if (reference != null) {
+               reference.closeConnections();
+           }
 
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
-}
 
+    /**
+     * -Dsimufrag.workload=FILE replays a generated workload instead of workload.txt.
+     */
+    private static InputStream openWorkload() throws IOException {
+        String workloadFile = System.getProperty("simufrag.workload");
+        return workloadFile != null
+                ? new FileInputStream(workloadFile)
+                : Driver.class.getClassLoader().getResourceAsStream("workload.txt");
+    }
+
+    private static boolean isWrite(Command command) {
+        switch (command.getType()) {
+            case INSERT_STUDENT:
+            case INSERT_GRADE:
+            case UPDATE_GRADE:
+            case DELETE_STUDENT_COURSE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Record a write command in the transaction.
+     */
+    private static void addWrite(FragmentTransaction transaction, Command command) {
+        switch (command.getType()) {
+            case INSERT_STUDENT:
+                transaction.insertStudent(command.getStudentId(), command.getStudentName(), command.getAge(),
+                        command.getEmail());
+                break;
+            case INSERT_GRADE:
+                transaction.insertGrade(command.getStudentId(), command.getCourseId(), command.getScore());
+                break;
+            case UPDATE_GRADE:
+                transaction.updateGrade(command.getStudentId(), command.getCourseId(), command.getScore());
+                break;
+            case DELETE_STUDENT_COURSE:
+                transaction.deleteStudentFromCourse(command.getStudentId(), command.getCourseId());
+                break;
+            default:
+                throw new IllegalArgumentException("Not a write: " + command.getType());
+        }
+    }
+
+    /**
+     * Commit the grouped writes as one transaction and empty the group. Single writes
+     * print nothing, so neither does a group. When one write is rejected for its data
+     * (e.g. a duplicate grade) the whole transaction rolls back, so the writes are then
+     * replayed one at a time: the rejected one fails on its own, as it would without
+     * grouping, and the others land.
+     */
+    private static void commitGroup(FragmentClient client, List<Command> group) {
+        if (group.isEmpty()) {
+            return;
+        }
+        FragmentTransaction transaction = client.beginTransaction();
+        for (Command write : group) {
+            addWrite(transaction, write);
+        }
+        try {
+            transaction.commit();
+        } catch (SQLException e) {
+            if (SqlStates.isDataError(e)) {
+                for (Command write : group) {
+                    write.execute(client);
+                }
+            } else {
+                System.err.println("Transaction of " + group.size() + " writes rolled back");
+                e.printStackTrace();
+            }
+        } catch (Exception e) {
+            System.err.println("Transaction of " + group.size() + " writes rolled back");
+            e.printStackTrace();
+        } finally {
+            group.clear();
+        }
+    }
+
+    /**
+     * Answer the queued READ_PROFILE lines with one batched lookup, printed in order.
+     */
+    private static void writeProfiles(FragmentClient client, List<String> studentIds, PrintWriter outputWriter) {
+        if (studentIds.isEmpty()) {
+            return;
+        }
+        for (String profile : client.getStudentProfiles(studentIds)) {
+            outputWriter.println(profile != null ? profile : "NULL");
+        }
+        studentIds.clear();
+    }
+}
@@ -1,20 +1,37 @@
 import java.sql.*;
 import java.util.*;
+import fragment.SchemaManager;
+import fragment.StatementCache;
+import fragment.WorkloadClient;
 
 /**
  * Baseline client that runs the workload against a single database.
  * Used to generate expected_output.txt for accuracy comparison.
  */
-public class SingleDbClient {
+public class SingleDbClient implements WorkloadClient {
 
     private Connection conn;
+    private StatementCache statements;
 
     public void setupConnection() {
         try {
             Class.forName("org.postgresql.Driver");
             String url = "jdbc:postgresql://localhost:5432/single_db";
-            conn = DriverManager.getConnection(url, "user", "password");
+            Properties props = new Properties();
+            props.setProperty("user", "user");
+            props.setProperty("password", "password");
+            props.setProperty("prepareThreshold", "1");
+
+            // A new connection never inherits statements prepared on the old one
+            if (statements != null) {
+                statements.invalidate();
+            }
+            conn = DriverManager.getConnection(url, props);
+            statements = new StatementCache(conn, StatementCache.DEFAULT_SIZE);
             System.out.println("Connected to single_db");
+            if (SchemaManager.ensureSchema(conn)) {
+                System.out.println("Created schema on single_db");
+            }
         } catch (Exception e) {
             System.out.println("Connection to single_db failed");
             e.printStackTrace();
@@ -24,13 +41,12 @@ public class SingleDbClient {
     public void insertStudent(String studentId, String name, int age, String email) {
         try {
             String sql = "INSERT INTO Student (student_id, name, age, email) VALUES (?, ?, ?, ?)";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
+            PreparedStatement pstmt = statements.prepare(sql);
             pstmt.setString(1, studentId);
             pstmt.setString(2, name);
             pstmt.setInt(3, age);
             pstmt.setString(4, email);
             pstmt.executeUpdate();
-            pstmt.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -39,12 +55,11 @@ public class SingleDbClient {
     public void insertGrade(String studentId, String courseId, int score) {
         try {
             String sql = "INSERT INTO Grade (student_id, course_id, score) VALUES (?, ?, ?)";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
+            PreparedStatement pstmt = statements.prepare(sql);
             pstmt.setString(1, studentId);
             pstmt.setString(2, courseId);
             pstmt.setInt(3, score);
             pstmt.executeUpdate();
-            pstmt.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -53,12 +68,11 @@ public class SingleDbClient {
     public void updateGrade(String studentId, String courseId, int newScore) {
         try {
             String sql = "UPDATE Grade SET score = ? WHERE student_id = ? AND course_id = ?";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
+            PreparedStatement pstmt = statements.prepare(sql);
             pstmt.setInt(1, newScore);
             pstmt.setString(2, studentId);
             pstmt.setString(3, courseId);
             pstmt.executeUpdate();
-            pstmt.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -67,11 +81,10 @@ public class SingleDbClient {
     public void deleteStudentFromCourse(String studentId, String courseId) {
         try {
             String sql = "DELETE FROM Grade WHERE student_id = ? AND course_id = ?";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
+            PreparedStatement pstmt = statements.prepare(sql);
             pstmt.setString(1, studentId);
             pstmt.setString(2, courseId);
             pstmt.executeUpdate();
-            pstmt.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -80,7 +93,7 @@ public class SingleDbClient {
     public String getStudentProfile(String studentId) {
         try {
             String sql = "SELECT name, email FROM Student WHERE student_id = ?";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
+            PreparedStatement pstmt = statements.prepare(sql);
             pstmt.setString(1, studentId);
             ResultSet rs = pstmt.executeQuery();
 
@@ -92,7 +105,6 @@ public class SingleDbClient {
             }
 
             rs.close();
-            pstmt.close();
             return result;
         } catch (Exception e) {
             e.printStackTrace();
@@ -107,7 +119,7 @@ public class SingleDbClient {
                     "FROM Grade g JOIN Course c ON g.course_id = c.course_id " +
                     "GROUP BY c.department";
 
-            PreparedStatement pstmt = conn.prepareStatement(sql);
+            PreparedStatement pstmt = statements.prepare(sql);
             ResultSet rs = pstmt.executeQuery();
 
             Map<String, Double> deptAvg = new HashMap<>();
@@ -118,7 +130,6 @@ public class SingleDbClient {
             }
 
             rs.close();
-            pstmt.close();
 
             if (deptAvg.isEmpty()) {
                 return "";
@@ -151,7 +162,7 @@ public class SingleDbClient {
                     "FROM Grade " +
                     "GROUP BY student_id";
 
-            PreparedStatement pstmt = conn.prepareStatement(sql);
+            PreparedStatement pstmt = statements.prepare(sql);
             ResultSet rs = pstmt.executeQuery();
 
             int maxCnt = 0;
@@ -171,7 +182,6 @@ public class SingleDbClient {
             }
 
             rs.close();
-            pstmt.close();
 
             if (topStudents.isEmpty() || maxCnt == 0) {
                 return "";
@@ -191,8 +201,23 @@ public class SingleDbClient {
         }
     }
 
+    /**
+     * Remove all students and grades so a workload can be replayed from scratch.
+     * Course rows are kept.
+     */
+    public void clearData() {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("TRUNCATE Grade, Student");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     public void closeConnection() {
         try {
+            if (statements != null) {
+                statements.invalidate();
+            }
             if (conn != null && !conn.isClosed()) {
                 conn.close();
             }
@@ -1,5 +1,6 @@
 import java.io.*;
-import java.util.Scanner;
+import fragment.Command;
+import fragment.CommandReader;
 
 /**
  * Driver that runs the workload against a single database using SingleDbClient.
@@ -18,69 +19,29 @@ public class SingleDbDriver {
             System.out.println("Initializing single DB connection...");
             client.setupConnection();
 
-            InputStream in = SingleDbDriver.class
-                    .getClassLoader()
-                    .getResourceAsStream("workload.txt");
+            // -Dsimufrag.workload=FILE replays a generated workload instead of workload.txt
+            String workloadFile = System.getProperty("simufrag.workload");
+            InputStream in = workloadFile != null
+                    ? new FileInputStream(workloadFile)
+                    : SingleDbDriver.class.getClassLoader().getResourceAsStream("workload.txt");
 
             if (in == null) {
                 System.err.println("Error: workload.txt not found on classpath.");
                 return;
             }
 
-            Scanner scanner = new Scanner(in);
-            PrintWriter outputWriter = new PrintWriter("expected_output.txt");
+            CommandReader reader = new CommandReader(in);
+            PrintWriter outputWriter = new PrintWriter(System.getProperty("simufrag.output", "expected_output.txt"));
 
             System.out.println("Processing workload on single DB...");
             long startTime = System.currentTimeMillis();
 
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine().trim();
-                if (line.isEmpty()) continue;
-
-                String[] parts = line.split(",");
-                String command = parts[0];
-
+            Command command;
+            while ((command = reader.next()) != null) {
                 try {
-                    switch (command) {
-                        case "INSERT_STUDENT":
-                            client.insertStudent(
-                                    parts[1], parts[2],
-                                    Integer.parseInt(parts[3]), parts[4]);
-                            break;
-
-                        case "INSERT_GRADE":
-                            client.insertGrade(
-                                    parts[1], parts[2],
-                                    Integer.parseInt(parts[3]));
-                            break;
-
-                        case "UPDATE_GRADE":
-                            client.updateGrade(
-                                    parts[1], parts[2],
-                                    Integer.parseInt(parts[3]));
-                            break;
-
-                        case "DELETE_STUDENT_COURSE":
-                            client.deleteStudentFromCourse(parts[1], parts[2]);
-                            break;
-
-                        case "READ_PROFILE":
-                            String profile = client.getStudentProfile(parts[1]);
-                            outputWriter.println(profile != null ? profile : "NULL");
-                            break;
-
-                        case "READ_SCORE":
-                            String gpa = client.getAvgScoreByDept();
-                            outputWriter.println(gpa != null ? gpa : "NULL");
-                            break;
-
-                        case "READ_ALL":
-                            String top = client.getAllStudentsWithMostCourses();
-                            outputWriter.println(top != null ? top : "NULL");
-                            break;
-
-                        default:
-                            outputWriter.println("ERROR: Unknown command " + command);
+                    String result = command.execute(client);
+                    if (result != null) {
+                        outputWriter.println(result);
                     }
                 } catch (Exception e) {
                     outputWriter.println("ERROR: " + e.getMessage());
@@ -90,7 +51,7 @@ public class SingleDbDriver {
             long endTime = System.currentTimeMillis();
             System.out.println("Single DB workload finished in " + (endTime - startTime) + "ms");
 
-            scanner.close();
+            reader.close();
             outputWriter.close();
             client.closeConnection();
 
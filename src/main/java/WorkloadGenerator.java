@@ -0,0 +1,301 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import fragment.Command;
+import fragment.CommandReader;
+import fragment.ConsistentHashRouter;
+import fragment.ModuloRouter;
+import fragment.Router;
+
+/**
+ * Generates a synthetic workload in the same grammar as workload.txt, at any scale,
+ * and optionally the matching expected output from single_db.
+ *
+ * All students are inserted first, then --ops commands follow with the requested
+ * read/write mix. Student popularity is Zipfian, and a share of the per-student
+ * commands can be concentrated on the students of one fragment. The generator tracks
+ * which grades exist so updates and deletes hit real rows and inserts do not collide.
+ *
+ * Usage: java -cp target/classes:postgresql.jar WorkloadGenerator [options]
+ *   --out FILE               workload file (default workload_generated.txt)
+ *   --expected FILE          replay the workload on single_db and write its output;
+ *                            clears single_db's Student and Grade tables first
+ *   --students N             students inserted up front (default 10000)
+ *   --ops N                  commands after the inserts (default 1000000)
+ *   --read-ratio R           share of commands that are reads (default 0.5)
+ *   --global-read-ratio R    share of reads that are READ_SCORE/READ_ALL (default 0.01)
+ *   --zipf S                 Zipf exponent in [0, 1), 0 is uniform (default 0.99)
+ *   --fragments N            fragment count used for placement (default 3)
+ *   --router modulo|consistent
+ *   --hot-fragment F         fragment that receives the skewed share (default none)
+ *   --hot-share S            share of per-student commands sent to it (default 0.5)
+ *   --seed N                 random seed (default 42)
+ *
+ * Then run Driver with -Dsimufrag.workload=FILE -Dsimufrag.output=output.txt and
+ * compare with: python3 compare_outputs.py expected.txt output.txt
+ */
+public class WorkloadGenerator {
+
+    // Courses created by init-scripts/scripts.sql
+    private static final String[] COURSES = { "CS101", "CS102", "MA101", "MA102", "PH101" };
+
+    private final Random random;
+    private final int students;
+    private final String idFormat;
+    private final double readRatio;
+    private final double globalReadRatio;
+    private final double hotShare;
+
+    // Popularity rank -> student index, over all students and over the hot fragment's students
+    private final int[] allByRank;
+    private final int[] hotByRank;
+    private final ZipfianGenerator allZipf;
+    private final ZipfianGenerator hotZipf;
+
+    // Bit i set when the student has a grade in COURSES[i]
+    private final byte[] enrolled;
+
+    WorkloadGenerator(Map<String, String> options) {
+        this.random = new Random(Long.parseLong(options.getOrDefault("seed", "42")));
+        this.students = Integer.parseInt(options.getOrDefault("students", "10000"));
+        this.readRatio = Double.parseDouble(options.getOrDefault("read-ratio", "0.5"));
+        this.globalReadRatio = Double.parseDouble(options.getOrDefault("global-read-ratio", "0.01"));
+        double zipf = Double.parseDouble(options.getOrDefault("zipf", "0.99"));
+        if (students < 1) {
+            throw new IllegalArgumentException("--students must be positive");
+        }
+
+        // Same shape as IMT_2023_001, widened when there are more than 999 students
+        int digits = Math.max(3, String.valueOf(students).length());
+        this.idFormat = "IMT_2023_%0" + digits + "d";
+
+        // Popularity is shuffled so hot students are not simply the lowest ids
+        this.allByRank = shuffledRange(students);
+        this.allZipf = new ZipfianGenerator(students, zipf);
+
+        String hot = options.get("hot-fragment");
+        if (hot != null) {
+            int fragments = Integer.parseInt(options.getOrDefault("fragments", "3"));
+            Router router = "consistent".equals(options.get("router"))
+                    ? new ConsistentHashRouter(fragments)
+                    : new ModuloRouter(fragments);
+            int hotFragment = Integer.parseInt(hot);
+
+            List<Integer> onHot = new ArrayList<>();
+            for (int rank = 0; rank < students; rank++) {
+                if (router.getFragmentId(studentId(allByRank[rank])) == hotFragment) {
+                    onHot.add(allByRank[rank]);
+                }
+            }
+            if (onHot.isEmpty()) {
+                throw new IllegalArgumentException("No student is placed on frag_" + hotFragment);
+            }
+            this.hotByRank = new int[onHot.size()];
+            for (int i = 0; i < hotByRank.length; i++) {
+                hotByRank[i] = onHot.get(i);
+            }
+            this.hotZipf = new ZipfianGenerator(hotByRank.length, zipf);
+            this.hotShare = Double.parseDouble(options.getOrDefault("hot-share", "0.5"));
+        } else {
+            this.hotByRank = null;
+            this.hotZipf = null;
+            this.hotShare = 0;
+        }
+
+        this.enrolled = new byte[students];
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = parseOptions(args);
+        String out = options.getOrDefault("out", "workload_generated.txt");
+        long ops = Long.parseLong(options.getOrDefault("ops", "1000000"));
+
+        try {
+            WorkloadGenerator generator = new WorkloadGenerator(options);
+            long start = System.currentTimeMillis();
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(out), StandardCharsets.UTF_8), 1 << 16)) {
+                generator.write(writer, ops);
+            }
+            System.out.println("Wrote " + (generator.students + ops) + " commands to " + out
+                    + " in " + (System.currentTimeMillis() - start) + "ms");
+
+            String expected = options.get("expected");
+            if (expected != null) {
+                writeExpectedOutput(out, expected);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    void write(Writer writer, long ops) throws IOException {
+        for (int s = 0; s < students; s++) {
+            writer.write("INSERT_STUDENT," + studentId(s) + ",Student_" + (s + 1) + ","
+                    + (19 + random.nextInt(7)) + ",student_" + (s + 1) + "@imt.edu\n");
+        }
+        for (long i = 0; i < ops; i++) {
+            writer.write(nextCommand());
+            writer.write('\n');
+        }
+    }
+
+    private String nextCommand() {
+        if (random.nextDouble() < readRatio) {
+            if (random.nextDouble() < globalReadRatio) {
+                return random.nextBoolean() ? "READ_SCORE" : "READ_ALL";
+            }
+            return "READ_PROFILE," + studentId(pickStudent());
+        }
+
+        int s = pickStudent();
+        int mask = enrolled[s];
+        double kind = random.nextDouble();
+
+        // 45% inserts, 35% updates, 20% deletes, falling back when the student has
+        // no free course (insert) or no grade (update/delete)
+        if ((kind < 0.45 || mask == 0) && mask != (1 << COURSES.length) - 1) {
+            int course = pickCourse(~mask);
+            enrolled[s] |= 1 << course;
+            return "INSERT_GRADE," + studentId(s) + "," + COURSES[course] + "," + score();
+        }
+        int course = pickCourse(mask);
+        if (kind < 0.80) {
+            return "UPDATE_GRADE," + studentId(s) + "," + COURSES[course] + "," + score();
+        }
+        enrolled[s] &= ~(1 << course);
+        return "DELETE_STUDENT_COURSE," + studentId(s) + "," + COURSES[course];
+    }
+
+    private int pickStudent() {
+        if (hotByRank != null && random.nextDouble() < hotShare) {
+            return hotByRank[(int) hotZipf.next(random)];
+        }
+        return allByRank[(int) allZipf.next(random)];
+    }
+
+    /**
+     * Uniformly chosen course whose bit is set in mask.
+     */
+    private int pickCourse(int mask) {
+        int candidates = Integer.bitCount(mask & ((1 << COURSES.length) - 1));
+        int pick = random.nextInt(candidates);
+        for (int c = 0; c < COURSES.length; c++) {
+            if ((mask & (1 << c)) != 0 && pick-- == 0) {
+                return c;
+            }
+        }
+        throw new IllegalStateException("No course in mask " + mask);
+    }
+
+    private int score() {
+        return 50 + random.nextInt(51);
+    }
+
+    private String studentId(int index) {
+        return String.format(idFormat, index + 1);
+    }
+
+    private int[] shuffledRange(int n) {
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = i;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = values[i];
+            values[i] = values[j];
+            values[j] = tmp;
+        }
+        return values;
+    }
+
+    /**
+     * Replay the workload on an emptied single_db, the same way SingleDbDriver does.
+     */
+    private static void writeExpectedOutput(String workload, String expected) throws IOException {
+        SingleDbClient client = new SingleDbClient();
+        client.setupConnection();
+        client.clearData();
+
+        long start = System.currentTimeMillis();
+        try (CommandReader reader = new CommandReader(new FileInputStream(workload));
+             PrintWriter outputWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                     new FileOutputStream(expected), StandardCharsets.UTF_8), 1 << 16))) {
+            Command command;
+            while ((command = reader.next()) != null) {
+                try {
+                    String result = command.execute(client);
+                    if (result != null) {
+                        outputWriter.println(result);
+                    }
+                } catch (Exception e) {
+                    outputWriter.println("ERROR: " + e.getMessage());
+                }
+            }
+        } finally {
+            client.closeConnection();
+        }
+        System.out.println("Wrote expected output to " + expected
+                + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+
+    /**
+     * Zipfian ranks in [0, n) with exponent theta in [0, 1), using the method of
+     * Gray et al., "Quickly Generating Billion-Record Synthetic Databases" (as in YCSB).
+     * Rank 0 is the most popular.
+     */
+    static class ZipfianGenerator {
+        private final long n;
+        private final double theta;
+        private final double alpha;
+        private final double zetan;
+        private final double eta;
+
+        ZipfianGenerator(long n, double theta) {
+            if (theta < 0 || theta >= 1) {
+                throw new IllegalArgumentException("Zipf exponent must be in [0, 1): " + theta);
+            }
+            this.n = n;
+            this.theta = theta;
+            this.alpha = 1.0 / (1.0 - theta);
+            this.zetan = zeta(n, theta);
+            double zeta2 = zeta(Math.min(n, 2), theta);
+            this.eta = n < 2 ? 0 : (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+        }
+
+        long next(Random random) {
+            if (n < 2) {
+                return 0;
+            }
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1.0) {
+                return 0;
+            }
+            if (uz < 1.0 + Math.pow(0.5, theta)) {
+                return 1;
+            }
+            return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1.0 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+    }
+}
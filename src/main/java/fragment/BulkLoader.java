@@ -0,0 +1,438 @@
+package fragment;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Initial population of the fragments through PostgreSQL COPY FROM STDIN.
+ *
+ * Rows are routed with the client's router and encoded as CSV into a per-fragment
+ * buffer. Full buffers are streamed into that fragment's open COPY by its own lane
+ * thread, so all fragments load in parallel while the caller keeps encoding; a few
+ * buffers per fragment may be in flight at once, which bounds memory.
+ *
+ * All students must be added before any grade. The first addGrade ends the Student
+ * COPY on every fragment, and since a student's grades live on the same fragment as
+ * the student, each fragment's Grade COPY starts as soon as its own Student COPY has
+ * committed. Each COPY commits on its own: a failure stops the load but leaves
+ * fragments that already finished a table loaded, so load into empty tables.
+ *
+ * The client's topology is locked from openBulkLoader() until finish() or close(),
+ * so other calls wait until the load is over. Use the loader from the thread that
+ * opened it.
+ */
+public class BulkLoader implements AutoCloseable {
+
+    public static final int DEFAULT_CHUNK_BYTES = 1 << 20;
+    private static final int MAX_CHUNKS_IN_FLIGHT = 4;
+
+    private static final String COPY_STUDENTS_SQL =
+            "COPY Student (student_id, name, age, email) FROM STDIN WITH (FORMAT csv)";
+    private static final String COPY_GRADES_SQL =
+            "COPY Grade (student_id, course_id, score) FROM STDIN WITH (FORMAT csv)";
+
+    private enum Phase { STUDENTS, GRADES, DONE }
+
+    private final FragmentClient client;
+    private final Router router;
+    private final int chunkBytes;
+    private final Map<Integer, FragmentCopy> copies = new HashMap<>();
+    private final Stats stats = new Stats();
+    private Phase phase = Phase.STUDENTS;
+
+    BulkLoader(FragmentClient client, int chunkBytes) {
+        this.client = client;
+        this.router = client.getRouter();
+        this.chunkBytes = chunkBytes;
+        stats.startNanos = System.nanoTime();
+        for (int fragmentId : router.getFragmentIds()) {
+            FragmentCopy copy = new FragmentCopy(fragmentId);
+            copies.put(fragmentId, copy);
+            copy.begin(COPY_STUDENTS_SQL);
+        }
+    }
+
+    public void addStudent(String studentId, String name, int age, String email) throws SQLException {
+        if (phase != Phase.STUDENTS) {
+            throw new IllegalStateException("Students must be added before any grade");
+        }
+        FragmentCopy copy = copies.get(router.getFragmentId(studentId));
+        StringBuilder row = copy.buffer;
+        appendCsv(row, studentId).append(',');
+        appendCsv(row, name).append(',');
+        row.append(age).append(',');
+        appendCsv(row, email).append('\n');
+        stats.students++;
+        copy.rowAdded();
+    }
+
+    public void addGrade(String studentId, String courseId, int score) throws SQLException {
+        if (phase == Phase.STUDENTS) {
+            // Close every Student COPY and queue the Grade COPY right behind it
+            for (FragmentCopy copy : copies.values()) {
+                copy.end();
+                copy.begin(COPY_GRADES_SQL);
+            }
+            phase = Phase.GRADES;
+        } else if (phase != Phase.GRADES) {
+            throw new IllegalStateException("Bulk load already finished");
+        }
+        FragmentCopy copy = copies.get(router.getFragmentId(studentId));
+        StringBuilder row = copy.buffer;
+        appendCsv(row, studentId).append(',');
+        appendCsv(row, courseId).append(',');
+        row.append(score).append('\n');
+        stats.grades++;
+        copy.rowAdded();
+    }
+
+    /**
+     * Flush and commit the open COPY on every fragment and wait for all of them.
+     */
+    public Stats finish() throws SQLException {
+        if (phase == Phase.DONE) {
+            return stats;
+        }
+        try {
+            for (FragmentCopy copy : copies.values()) {
+                copy.end();
+            }
+            for (FragmentCopy copy : copies.values()) {
+                copy.await();
+            }
+            stats.endNanos = System.nanoTime();
+            return stats;
+        } catch (SQLException | RuntimeException e) {
+            abort();
+            throw e;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Cancels the load unless finish() has completed.
+     */
+    @Override
+    public void close() {
+        if (phase != Phase.DONE) {
+            abort();
+            release();
+        }
+    }
+
+    private void abort() {
+        for (FragmentCopy copy : copies.values()) {
+            copy.cancel();
+        }
+        for (FragmentCopy copy : copies.values()) {
+            try {
+                copy.await();
+            } catch (SQLException e) {
+                // Already reported by the caller
+            }
+        }
+    }
+
+    private void release() {
+        phase = Phase.DONE;
+        for (FragmentCopy copy : copies.values()) {
+            copy.lane.shutdown();
+        }
+        client.finishBulkLoad();
+    }
+
+    /**
+     * Load the rows a workload file leaves behind when its writes are run in order.
+     *
+     * COPY aborts on the first key violation, so the writes are first applied in
+     * memory the way the fragments would apply them one by one: a repeated
+     * INSERT_STUDENT or an INSERT_GRADE for an existing (student, course) pair is
+     * rejected and the first row is kept, a grade for an unknown student is rejected,
+     * UPDATE_GRADE changes the score of an existing grade, and DELETE_STUDENT_COURSE
+     * removes it. Reads are ignored.
+     */
+    public static Stats loadWorkload(FragmentClient client, String path) throws SQLException, IOException {
+        Map<String, Command> students = new LinkedHashMap<>();
+        Map<String, Command> grades = new LinkedHashMap<>();
+        try (CommandReader reader = new CommandReader(new FileInputStream(path))) {
+            Command command;
+            while ((command = reader.next()) != null) {
+                String gradeKey = command.getStudentId() + "," + command.getCourseId();
+                switch (command.getType()) {
+                    case INSERT_STUDENT:
+                        students.putIfAbsent(command.getStudentId(), command.copy());
+                        break;
+                    case INSERT_GRADE:
+                        if (students.containsKey(command.getStudentId())) {
+                            grades.putIfAbsent(gradeKey, command.copy());
+                        }
+                        break;
+                    case UPDATE_GRADE:
+                        // Replacing the value keeps the insert's position in the load order
+                        if (grades.containsKey(gradeKey)) {
+                            grades.put(gradeKey, command.copy());
+                        }
+                        break;
+                    case DELETE_STUDENT_COURSE:
+                        grades.remove(gradeKey);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        try (BulkLoader loader = client.openBulkLoader()) {
+            for (Command student : students.values()) {
+                loader.addStudent(student.getStudentId(), student.getStudentName(),
+                        student.getAge(), student.getEmail());
+            }
+            for (Command grade : grades.values()) {
+                loader.addGrade(grade.getStudentId(), grade.getCourseId(), grade.getScore());
+            }
+            return loader.finish();
+        }
+    }
+
+    /**
+     * Usage: java -cp target/classes:postgresql.jar fragment.BulkLoader FILE [numFragments] [consistent]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: fragment.BulkLoader WORKLOAD_FILE [numFragments] [consistent]");
+            return;
+        }
+        int numFragments = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        Router router = args.length > 2 && "consistent".equals(args[2])
+                ? new ConsistentHashRouter(numFragments)
+                : new ModuloRouter(numFragments);
+
+        FragmentClient client = new FragmentClient(router);
+        client.setupConnections();
+        try {
+            System.out.println("Bulk load finished: " + loadWorkload(client, args[0]));
+        } finally {
+            client.closeConnections();
+        }
+    }
+
+    /**
+     * CSV field as COPY reads it: empty unquoted means NULL, anything with a special
+     * character is quoted with embedded quotes doubled.
+     */
+    private static StringBuilder appendCsv(StringBuilder sb, String value) {
+        if (value == null) {
+            return sb;
+        }
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            return sb.append(value);
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        return sb.append('"');
+    }
+
+    /**
+     * One fragment's side of the load: its lane thread, connection and open COPY.
+     * Only the lane touches the connection; the caller only fills the buffer.
+     */
+    private class FragmentCopy {
+        final int fragmentId;
+        final ExecutorService lane;
+        final Semaphore inFlight = new Semaphore(MAX_CHUNKS_IN_FLIGHT);
+        final StringBuilder buffer = new StringBuilder();
+        volatile Throwable failure;
+        Future<?> tail = CompletableFuture.completedFuture(null);
+
+        // Lane-confined
+        PooledConnection pooled;
+        CopyIn copyIn;
+
+        FragmentCopy(int fragmentId) {
+            this.fragmentId = fragmentId;
+            this.lane = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "bulk-load-frag_" + fragmentId);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        void begin(String sql) {
+            submit(() -> {
+                if (pooled == null) {
+                    pooled = client.borrow(fragmentId);
+                }
+                copyIn = pooled.connection().unwrap(PGConnection.class).getCopyAPI().copyIn(sql);
+            });
+        }
+
+        void rowAdded() throws SQLException {
+            if (buffer.length() >= chunkBytes) {
+                flushBuffer();
+            }
+        }
+
+        void end() throws SQLException {
+            flushBuffer();
+            submit(() -> {
+                long rows = copyIn.endCopy();
+                copyIn = null;
+                synchronized (stats) {
+                    stats.rowsByFragment.merge(fragmentId, rows, Long::sum);
+                }
+            });
+        }
+
+        void flushBuffer() throws SQLException {
+            checkFailure();
+            if (buffer.length() == 0) {
+                return;
+            }
+            byte[] chunk = buffer.toString().getBytes(StandardCharsets.UTF_8);
+            buffer.setLength(0);
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted during bulk load", e);
+            }
+            synchronized (stats) {
+                stats.bytes += chunk.length;
+            }
+            tail = lane.submit(() -> {
+                try {
+                    if (failure == null) {
+                        copyIn.writeToCopy(chunk, 0, chunk.length);
+                    }
+                } catch (Throwable t) {
+                    failure = t;
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+
+        void cancel() {
+            buffer.setLength(0);
+            tail = lane.submit(() -> {
+                try {
+                    if (copyIn != null && copyIn.isActive()) {
+                        copyIn.cancelCopy();
+                    }
+                } catch (SQLException e) {
+                    // The connection is discarded below if it is unusable
+                } finally {
+                    copyIn = null;
+                    releaseConnection();
+                }
+            });
+        }
+
+        void await() throws SQLException {
+            try {
+                tail.get();
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted during bulk load", e);
+            }
+            submitRelease();
+            checkFailure();
+        }
+
+        private void submitRelease() {
+            try {
+                lane.submit(this::releaseConnection).get();
+            } catch (Exception e) {
+                // Lane already shut down by an earlier release
+            }
+        }
+
+        private void releaseConnection() {
+            if (pooled != null) {
+                pooled.release();
+                pooled = null;
+            }
+        }
+
+        private void checkFailure() throws SQLException {
+            Throwable t = failure;
+            if (t != null) {
+                if (t instanceof SQLException) {
+                    throw new SQLException("Bulk load into frag_" + fragmentId + " failed: " + t.getMessage(),
+                            ((SQLException) t).getSQLState(), t);
+                }
+                throw new SQLException("Bulk load into frag_" + fragmentId + " failed", t);
+            }
+        }
+
+        private void submit(SqlWork work) {
+            tail = lane.submit(() -> {
+                try {
+                    if (failure == null) {
+                        work.run();
+                    }
+                } catch (Throwable t) {
+                    failure = t;
+                }
+            });
+        }
+    }
+
+    private interface SqlWork {
+        void run() throws SQLException;
+    }
+
+    /**
+     * Rows and bytes sent, and the load rate.
+     */
+    public static class Stats {
+        private long startNanos;
+        private long endNanos;
+        private long students;
+        private long grades;
+        private long bytes;
+        private final Map<Integer, Long> rowsByFragment = new TreeMap<>();
+
+        public long getStudents() {
+            return students;
+        }
+
+        public long getGrades() {
+            return grades;
+        }
+
+        public synchronized Map<Integer, Long> getRowsByFragment() {
+            return new TreeMap<>(rowsByFragment);
+        }
+
+        public double getElapsedSeconds() {
+            long end = endNanos != 0 ? endNanos : System.nanoTime();
+            return (end - startNanos) / 1e9;
+        }
+
+        @Override
+        public synchronized String toString() {
+            double seconds = Math.max(1e-9, getElapsedSeconds());
+            return String.format(Locale.US, "students=%d grades=%d rowsByFragment=%s bytes=%d elapsed=%.2fs rows/s=%.0f",
+                    students, grades, rowsByFragment, bytes, seconds, (students + grades) / seconds);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package fragment;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Health of one fragment as seen by its connection pool.
+ *
+ * CLOSED is normal operation. After failureThreshold consecutive failed calls the
+ * breaker OPENs and borrow() fails immediately instead of waiting on a fragment that
+ * is down or too slow. Once the open period has passed a single trial call is let
+ * through (HALF_OPEN): success closes the breaker, failure opens it again for twice
+ * as long, up to maxOpenMillis. Reconnecting is therefore retried with exponential
+ * backoff without any caller stalling on it.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long baseOpenNanos;
+    private final long maxOpenNanos;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openNanos;
+    private long openUntilNanos;
+    private long opens;
+    private long rejected;
+    private String lastFailure;
+
+    public CircuitBreaker(int failureThreshold, long baseOpenMillis, long maxOpenMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.baseOpenNanos = TimeUnit.MILLISECONDS.toNanos(baseOpenMillis);
+        this.maxOpenNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(baseOpenMillis, maxOpenMillis));
+        this.openNanos = baseOpenNanos;
+    }
+
+    /**
+     * Whether a call may go to the fragment now. In HALF_OPEN only the first caller
+     * after the open period gets through.
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN && System.nanoTime() - openUntilNanos >= 0) {
+            state = State.HALF_OPEN;
+            return true;
+        }
+        rejected++;
+        return false;
+    }
+
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            state = State.CLOSED;
+            openNanos = baseOpenNanos;
+        }
+    }
+
+    public synchronized void onFailure(String reason) {
+        lastFailure = reason;
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            // The trial failed: back off further
+            openNanos = Math.min(maxOpenNanos, openNanos * 2);
+            open();
+        } else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            open();
+        }
+    }
+
+    /**
+     * The call ended without telling anything about the fragment, e.g. the caller was
+     * interrupted. A pending trial goes to the next caller.
+     */
+    public synchronized void onAbandoned() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+            openUntilNanos = System.nanoTime();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntilNanos = System.nanoTime() + openNanos;
+        opens++;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Milliseconds until the next trial call is allowed; 0 unless OPEN.
+     */
+    public synchronized long getRetryInMillis() {
+        return state == State.OPEN ? Math.max(0, TimeUnit.NANOSECONDS.toMillis(openUntilNanos - System.nanoTime())) : 0;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public synchronized long getOpens() {
+        return opens;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public synchronized String getLastFailure() {
+        return lastFailure;
+    }
+}
@@ -0,0 +1,219 @@
+package fragment;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * Latency histograms, throughput and error counts of a FragmentClient, per operation
+ * and per fragment.
+ *
+ * Recording only touches preallocated counters, so it adds no garbage to the hot path.
+ * The same figures are available as a text or JSON report and, once registered, as
+ * MXBeans under the "fragment" JMX domain.
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final String name;
+    private final EnumMap<Command.Type, OperationMetrics> operations = new EnumMap<>(Command.Type.class);
+    private final Map<Integer, FragmentMetrics> fragments = new ConcurrentSkipListMap<>();
+    private final List<ObjectName> registered = new ArrayList<>();
+    private volatile long startNanos = System.nanoTime();
+
+    public ClientMetrics() {
+        this.name = "client-" + INSTANCES.incrementAndGet();
+        for (Command.Type type : Command.Type.values()) {
+            if (type != Command.Type.UNKNOWN && type != Command.Type.INVALID) {
+                operations.put(type, new OperationMetrics(type, this));
+            }
+        }
+    }
+
+    /**
+     * Record one call of an operation that started at startNanos (System.nanoTime()).
+     */
+    public void record(Command.Type operation, long startNanos) {
+        operations.get(operation).record(System.nanoTime() - startNanos);
+    }
+
+    public void recordError(Command.Type operation) {
+        operations.get(operation).recordError();
+    }
+
+    public OperationMetrics getOperation(Command.Type operation) {
+        return operations.get(operation);
+    }
+
+    /**
+     * Metrics of a fragment, created on first use. Handed to its connection pool.
+     */
+    public FragmentMetrics forFragment(int fragmentId) {
+        return fragments.computeIfAbsent(fragmentId, id -> {
+            FragmentMetrics created = new FragmentMetrics(id, this);
+            synchronized (registered) {
+                // Fragments added after registration show up in JMX as well
+                if (!registered.isEmpty()) {
+                    register(created, "type=Fragment,name=frag_" + id);
+                }
+            }
+            return created;
+        });
+    }
+
+    public Map<Integer, FragmentMetrics> getFragments() {
+        return Collections.unmodifiableMap(fragments);
+    }
+
+    @Override
+    public long getTotalOperations() {
+        long total = 0;
+        for (OperationMetrics op : operations.values()) {
+            total += op.getCount();
+        }
+        return total;
+    }
+
+    @Override
+    public long getTotalErrors() {
+        long total = 0;
+        for (OperationMetrics op : operations.values()) {
+            total += op.getErrors();
+        }
+        return total;
+    }
+
+    @Override
+    public double getUptimeSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    /**
+     * Start a fresh measurement window.
+     */
+    @Override
+    public void reset() {
+        for (OperationMetrics op : operations.values()) {
+            op.reset();
+        }
+        for (FragmentMetrics fragment : fragments.values()) {
+            fragment.reset();
+        }
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Register the client, every operation and every fragment with the platform MBean
+     * server as fragment:type=...,client=client-N.
+     */
+    public void registerMBeans() {
+        synchronized (registered) {
+            if (!registered.isEmpty()) {
+                return;
+            }
+            register(this, "type=Client");
+            for (OperationMetrics op : operations.values()) {
+                register(op, "type=Operation,name=" + op.getOperation());
+            }
+            for (FragmentMetrics fragment : fragments.values()) {
+                register(fragment, "type=Fragment,name=frag_" + fragment.getFragmentId());
+            }
+        }
+    }
+
+    public void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (registered) {
+            for (ObjectName objectName : registered) {
+                try {
+                    server.unregisterMBean(objectName);
+                } catch (JMException e) {
+                    // Already gone
+                }
+            }
+            registered.clear();
+        }
+    }
+
+    private void register(Object bean, String properties) {
+        try {
+            ObjectName objectName = new ObjectName("fragment:" + properties + ",client=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, objectName);
+            registered.add(objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Human readable table; latencies in microseconds.
+     */
+    @Override
+    public String getTextReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "== %s uptime=%.1fs ops=%d errors=%d ==%n",
+                name, getUptimeSeconds(), getTotalOperations(), getTotalErrors()));
+        sb.append(String.format(Locale.US, "%-22s %9s %7s %9s %9s %9s %9s %9s %9s%n",
+                "operation", "count", "errors", "ops/s", "mean", "p50", "p99", "p99.9", "max"));
+        for (OperationMetrics op : operations.values()) {
+            if (op.getCount() == 0 && op.getErrors() == 0) {
+                continue;
+            }
+            sb.append(String.format(Locale.US, "%-22s %9d %7d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+                    op.getOperation(), op.getCount(), op.getErrors(), op.getThroughputPerSecond(),
+                    op.getMeanMicros(), op.getP50Micros(), op.getP99Micros(), op.getP999Micros(), op.getMaxMicros()));
+        }
+        sb.append(String.format(Locale.US, "%-8s %9s %7s %10s %10s %10s %10s %10s %10s %10s%n",
+                "fragment", "borrows", "errors", "hold-p50", "hold-p99", "hold-p99.9", "hold-max",
+                "wait-p50", "wait-p99", "wait-max"));
+        for (FragmentMetrics f : fragments.values()) {
+            sb.append(String.format(Locale.US, "frag_%-3d %9d %7d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    f.getFragmentId(), f.getBorrows(), f.getErrors(),
+                    f.getHoldP50Micros(), f.getHoldP99Micros(), f.getHoldP999Micros(), f.getHoldMaxMicros(),
+                    f.getWaitP50Micros(), f.getWaitP99Micros(), f.getWaitMaxMicros()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Single-line JSON object; latencies in microseconds.
+     */
+    @Override
+    public String getJsonReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "{\"client\":\"%s\",\"uptimeSeconds\":%.3f,\"operations\":{",
+                name, getUptimeSeconds()));
+        boolean first = true;
+        for (OperationMetrics op : operations.values()) {
+            if (!first) sb.append(',');
+            first = false;
+            sb.append(String.format(Locale.US,
+                    "\"%s\":{\"count\":%d,\"errors\":%d,\"opsPerSecond\":%.3f,\"mean\":%.3f,"
+                            + "\"p50\":%.3f,\"p99\":%.3f,\"p999\":%.3f,\"max\":%.3f}",
+                    op.getOperation(), op.getCount(), op.getErrors(), op.getThroughputPerSecond(),
+                    op.getMeanMicros(), op.getP50Micros(), op.getP99Micros(), op.getP999Micros(), op.getMaxMicros()));
+        }
+        sb.append("},\"fragments\":{");
+        first = true;
+        for (FragmentMetrics f : fragments.values()) {
+            if (!first) sb.append(',');
+            first = false;
+            sb.append(String.format(Locale.US,
+                    "\"frag_%d\":{\"borrows\":%d,\"errors\":%d,\"borrowsPerSecond\":%.3f,"
+                            + "\"hold\":{\"p50\":%.3f,\"p99\":%.3f,\"p999\":%.3f,\"max\":%.3f},"
+                            + "\"wait\":{\"p50\":%.3f,\"p99\":%.3f,\"p999\":%.3f,\"max\":%.3f}}",
+                    f.getFragmentId(), f.getBorrows(), f.getErrors(), f.getBorrowsPerSecond(),
+                    f.getHoldP50Micros(), f.getHoldP99Micros(), f.getHoldP999Micros(), f.getHoldMaxMicros(),
+                    f.getWaitP50Micros(), f.getWaitP99Micros(), f.getWaitP999Micros(), f.getWaitMaxMicros()));
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getTextReport();
+    }
+}
@@ -0,0 +1,13 @@
+package fragment;
+
+/**
+ * JMX view of a whole FragmentClient.
+ */
+public interface ClientMetricsMXBean {
+    long getTotalOperations();
+    long getTotalErrors();
+    double getUptimeSeconds();
+    String getTextReport();
+    String getJsonReport();
+    void reset();
+}
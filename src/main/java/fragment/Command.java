@@ -0,0 +1,179 @@
+package fragment;
+
+/**
+ * One parsed workload line, e.g. "INSERT_GRADE,IMT_2023_001,CS101,87".
+ *
+ * Commands from parse() never change. The instance handed out by CommandReader is
+ * refilled for every line, so use copy() to keep one beyond the next read.
+ */
+public class Command {
+
+    public enum Type {
+        INSERT_STUDENT,
+        INSERT_GRADE,
+        UPDATE_GRADE,
+        DELETE_STUDENT_COURSE,
+        READ_PROFILE,
+        READ_SCORE,
+        READ_ALL,
+        UNKNOWN,
+        INVALID;
+
+        /**
+         * READ_SCORE and READ_ALL look at every student; everything else touches one.
+         */
+        public boolean isGlobal() {
+            return this == READ_SCORE || this == READ_ALL;
+        }
+    }
+
+    private Type type;
+    private String name;
+    private String studentId;
+    private String studentName;
+    private int age;
+    private String email;
+    private String courseId;
+    private int score;
+
+    private Command(Type type, String name, String studentId, String studentName, int age, String email,
+                    String courseId, int score) {
+        set(type, name, studentId, studentName, age, email, courseId, score);
+    }
+
+    /**
+     * Empty command for CommandReader to fill in.
+     */
+    Command() {
+        this.type = Type.INVALID;
+    }
+
+    void set(Type type, String name, String studentId, String studentName, int age, String email,
+             String courseId, int score) {
+        this.type = type;
+        this.name = name;
+        this.studentId = studentId;
+        this.studentName = studentName;
+        this.age = age;
+        this.email = email;
+        this.courseId = courseId;
+        this.score = score;
+    }
+
+    /**
+     * Parse a trimmed, non-empty workload line. Malformed arguments throw,
+     * just as they did when the drivers parsed lines inline.
+     */
+    public static Command parse(String line) {
+        String[] parts = line.split(",");
+        String command = parts[0];
+
+        switch (command) {
+            case "INSERT_STUDENT":
+                return new Command(Type.INSERT_STUDENT, command, parts[1], parts[2],
+                        Integer.parseInt(parts[3]), parts[4], null, 0);
+            case "INSERT_GRADE":
+                return new Command(Type.INSERT_GRADE, command, parts[1], null, 0, null,
+                        parts[2], Integer.parseInt(parts[3]));
+            case "UPDATE_GRADE":
+                return new Command(Type.UPDATE_GRADE, command, parts[1], null, 0, null,
+                        parts[2], Integer.parseInt(parts[3]));
+            case "DELETE_STUDENT_COURSE":
+                return new Command(Type.DELETE_STUDENT_COURSE, command, parts[1], null, 0, null, parts[2], 0);
+            case "READ_PROFILE":
+                return new Command(Type.READ_PROFILE, command, parts[1], null, 0, null, null, 0);
+            case "READ_SCORE":
+                return new Command(Type.READ_SCORE, command, null, null, 0, null, null, 0);
+            case "READ_ALL":
+                return new Command(Type.READ_ALL, command, null, null, 0, null, null, 0);
+            default:
+                return new Command(Type.UNKNOWN, command, null, null, 0, null, null, 0);
+        }
+    }
+
+    /**
+     * Placeholder for a line that failed to parse; executing it reports the error.
+     */
+    public static Command invalid(String message) {
+        return new Command(Type.INVALID, message, null, null, 0, null, null, 0);
+    }
+
+    /**
+     * Independent copy, unaffected when a CommandReader reuses this instance.
+     */
+    public Command copy() {
+        return new Command(type, name, studentId, studentName, age, email, courseId, score);
+    }
+
+    /**
+     * Run the command. Returns the output line for reads, null for writes.
+     */
+    public String execute(WorkloadClient client) {
+        switch (type) {
+            case INSERT_STUDENT:
+                client.insertStudent(studentId, studentName, age, email);
+                return null;
+
+            case INSERT_GRADE:
+                client.insertGrade(studentId, courseId, score);
+                return null;
+
+            case UPDATE_GRADE:
+                client.updateGrade(studentId, courseId, score);
+                return null;
+
+            case DELETE_STUDENT_COURSE:
+                client.deleteStudentFromCourse(studentId, courseId);
+                return null;
+
+            case READ_PROFILE:
+                String profile = client.getStudentProfile(studentId);
+                return profile != null ? profile : "NULL";
+
+            case READ_SCORE:
+                String gpa = client.getAvgScoreByDept();
+                return gpa != null ? gpa : "NULL";
+
+            case READ_ALL:
+                String top = client.getAllStudentsWithMostCourses();
+                return top != null ? top : "NULL";
+
+            case INVALID:
+                return "ERROR: " + name;
+
+            default:
+                return "ERROR: Unknown command " + name;
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Student the command is about, or null for global commands.
+     */
+    public String getStudentId() {
+        return studentId;
+    }
+
+    public String getStudentName() {
+        return studentName;
+    }
+
+    public int getAge() {
+        return age;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getCourseId() {
+        return courseId;
+    }
+
+    public int getScore() {
+        return score;
+    }
+}
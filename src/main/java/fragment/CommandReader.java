@@ -0,0 +1,285 @@
+package fragment;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams workload lines from an input stream and parses them in place.
+ *
+ * Lines are cut straight out of a reusable byte buffer, so the whole file never has
+ * to fit in memory. Fields are located by scanning for commas, numbers are parsed
+ * from the bytes, and the command keyword is matched without building a String.
+ * Student and course ids repeat constantly, so their Strings come from a small
+ * direct-mapped table instead of being decoded again for every line.
+ *
+ * next() refills and returns the same Command object each time; callers that hold
+ * on to a command past the next call must copy() it. Malformed lines produce an
+ * INVALID command with the same message Command.parse would have thrown.
+ */
+public class CommandReader implements Closeable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    private static final int STRING_TABLE_SIZE = 1 << 13;
+
+    private static final Command.Type[] TYPES = Command.Type.values();
+    private static final byte[][] KEYWORDS = new byte[TYPES.length][];
+    static {
+        for (Command.Type type : TYPES) {
+            if (type != Command.Type.UNKNOWN && type != Command.Type.INVALID) {
+                KEYWORDS[type.ordinal()] = type.name().getBytes(StandardCharsets.US_ASCII);
+            }
+        }
+    }
+
+    private final InputStream in;
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private long lineNumber;
+
+    // Field boundaries of the current line; only the first few are ever needed
+    private final int[] fieldStart = new int[5];
+    private final int[] fieldEnd = new int[5];
+    private int fieldCount;
+
+    private final String[] stringTable = new String[STRING_TABLE_SIZE];
+    private final Command command = new Command();
+
+    public CommandReader(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public CommandReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[Math.max(16, bufferSize)];
+    }
+
+    /**
+     * Next non-blank line as a command, or null at the end of the input.
+     * The returned object is reused by the following call.
+     */
+    public Command next() throws IOException {
+        while (true) {
+            int lineStart = pos;
+            int newline = indexOfNewline(lineStart);
+            while (newline < 0 && !eof) {
+                lineStart = fill(lineStart);
+                newline = indexOfNewline(lineStart);
+            }
+            int lineEnd = newline >= 0 ? newline : limit;
+            if (newline < 0 && lineStart == limit) {
+                return null;
+            }
+            pos = newline >= 0 ? newline + 1 : limit;
+            lineNumber++;
+
+            // Same trimming as String.trim()
+            int start = lineStart;
+            int end = lineEnd;
+            while (start < end && (buf[start] & 0xff) <= ' ') start++;
+            while (end > start && (buf[end - 1] & 0xff) <= ' ') end--;
+            if (start == end) {
+                continue;
+            }
+
+            try {
+                parse(start, end);
+            } catch (RuntimeException e) {
+                command.set(Command.Type.INVALID, e.getMessage(), null, null, 0, null, null, 0);
+            }
+            return command;
+        }
+    }
+
+    /**
+     * 1-based number of the line last returned.
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void parse(int start, int end) {
+        splitFields(start, end);
+        Command.Type type = keyword();
+
+        switch (type) {
+            case INSERT_STUDENT: {
+                String studentId = id(1);
+                String name = text(2);
+                int age = integer(3);
+                command.set(type, type.name(), studentId, name, age, text(4), null, 0);
+                break;
+            }
+            case INSERT_GRADE:
+            case UPDATE_GRADE: {
+                String studentId = id(1);
+                String courseId = id(2);
+                command.set(type, type.name(), studentId, null, 0, null, courseId, integer(3));
+                break;
+            }
+            case DELETE_STUDENT_COURSE: {
+                String studentId = id(1);
+                command.set(type, type.name(), studentId, null, 0, null, id(2), 0);
+                break;
+            }
+            case READ_PROFILE:
+                command.set(type, type.name(), id(1), null, 0, null, null, 0);
+                break;
+            case READ_SCORE:
+            case READ_ALL:
+                command.set(type, type.name(), null, null, 0, null, null, 0);
+                break;
+            default:
+                command.set(Command.Type.UNKNOWN, id(0), null, null, 0, null, null, 0);
+        }
+    }
+
+    /**
+     * Record comma-separated fields like String.split(","), which drops trailing empty fields.
+     */
+    private void splitFields(int start, int end) {
+        int count = 0;
+        int lastNonEmpty = 0;
+        int fieldBegin = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || buf[i] == ',') {
+                if (count < fieldStart.length) {
+                    fieldStart[count] = fieldBegin;
+                    fieldEnd[count] = i;
+                }
+                count++;
+                if (i > fieldBegin) {
+                    lastNonEmpty = count;
+                }
+                fieldBegin = i + 1;
+            }
+        }
+        fieldCount = lastNonEmpty;
+    }
+
+    private Command.Type keyword() {
+        if (fieldCount == 0) {
+            return Command.Type.UNKNOWN;
+        }
+        int start = fieldStart[0];
+        int len = fieldEnd[0] - start;
+        for (int t = 0; t < KEYWORDS.length; t++) {
+            byte[] keyword = KEYWORDS[t];
+            if (keyword == null || keyword.length != len) {
+                continue;
+            }
+            int i = 0;
+            while (i < len && buf[start + i] == keyword[i]) i++;
+            if (i == len) {
+                return TYPES[t];
+            }
+        }
+        return Command.Type.UNKNOWN;
+    }
+
+    private void checkField(int index) {
+        if (index >= fieldCount) {
+            throw new ArrayIndexOutOfBoundsException("Index " + index + " out of bounds for length " + fieldCount);
+        }
+    }
+
+    /**
+     * Field as a String, shared with earlier lines carrying the same ASCII value.
+     */
+    private String id(int index) {
+        checkField(index);
+        int start = fieldStart[index];
+        int len = fieldEnd[index] - start;
+
+        int hash = 0;
+        for (int i = 0; i < len; i++) {
+            byte b = buf[start + i];
+            if (b < 0) {
+                // Non-ASCII: not worth caching
+                return new String(buf, start, len, StandardCharsets.UTF_8);
+            }
+            hash = 31 * hash + b;
+        }
+        int slot = (hash ^ (hash >>> 16)) & (STRING_TABLE_SIZE - 1);
+        String cached = stringTable[slot];
+        if (cached != null && cached.length() == len) {
+            int i = 0;
+            while (i < len && cached.charAt(i) == buf[start + i]) i++;
+            if (i == len) {
+                return cached;
+            }
+        }
+        String value = new String(buf, start, len, StandardCharsets.US_ASCII);
+        stringTable[slot] = value;
+        return value;
+    }
+
+    private String text(int index) {
+        checkField(index);
+        return new String(buf, fieldStart[index], fieldEnd[index] - fieldStart[index], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Plain decimal digits are parsed directly; anything else goes through
+     * Integer.parseInt so signs, overflow and errors behave exactly as before.
+     */
+    private int integer(int index) {
+        checkField(index);
+        int start = fieldStart[index];
+        int len = fieldEnd[index] - start;
+        if (len > 0 && len <= 9) {
+            int value = 0;
+            int i = 0;
+            for (; i < len; i++) {
+                int digit = buf[start + i] - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                value = value * 10 + digit;
+            }
+            if (i == len) {
+                return value;
+            }
+        }
+        return Integer.parseInt(new String(buf, start, len, StandardCharsets.UTF_8));
+    }
+
+    private int indexOfNewline(int from) {
+        for (int i = from; i < limit; i++) {
+            if (buf[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Move the partial line to the front of the buffer, growing it for very long lines,
+     * and read more input after it. Returns the new start of the partial line.
+     */
+    private int fill(int lineStart) throws IOException {
+        int remaining = limit - lineStart;
+        if (lineStart > 0) {
+            System.arraycopy(buf, lineStart, buf, 0, remaining);
+        } else if (remaining == buf.length) {
+            byte[] bigger = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, bigger, 0, remaining);
+            buf = bigger;
+        }
+        limit = remaining;
+        pos = 0;
+
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+        return 0;
+    }
+}
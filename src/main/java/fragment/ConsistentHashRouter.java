@@ -0,0 +1,158 @@
+package fragment;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Consistent-hash ring with virtual nodes.
+ * Each fragment owns many points on a 64-bit ring and a key belongs to the first
+ * point at or after its hash, so adding or removing one of N fragments only moves
+ * about 1/N of the keys. Hashing uses MurmurHash3 (x64, 128-bit, low half), which
+ * mixes well even for sequential ids like IMT_2023_001, unlike String.hashCode().
+ *
+ * Instances are immutable; withFragment/withoutFragment return a new ring.
+ */
+public class ConsistentHashRouter implements Router {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final List<Integer> fragmentIds;
+    private final int virtualNodes;
+    private final long[] ringHashes;
+    private final int[] ringOwners;
+
+    public ConsistentHashRouter(int numFragments) {
+        this(rangeOf(numFragments), DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRouter(Collection<Integer> fragmentIds, int virtualNodes) {
+        if (fragmentIds.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one fragment");
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Need at least one virtual node: " + virtualNodes);
+        }
+        List<Integer> ids = new ArrayList<>(new TreeSet<>(fragmentIds));
+        this.fragmentIds = Collections.unmodifiableList(ids);
+        this.virtualNodes = virtualNodes;
+
+        // Build the ring as parallel arrays sorted by point hash
+        int points = ids.size() * virtualNodes;
+        long[][] ring = new long[points][];
+        int p = 0;
+        for (int fragmentId : ids) {
+            for (int v = 0; v < virtualNodes; v++) {
+                ring[p++] = new long[] { hash("frag_" + fragmentId + "#" + v), fragmentId };
+            }
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+
+        this.ringHashes = new long[points];
+        this.ringOwners = new int[points];
+        for (int i = 0; i < points; i++) {
+            ringHashes[i] = ring[i][0];
+            ringOwners[i] = (int) ring[i][1];
+        }
+    }
+
+    @Override
+    public int getFragmentId(String key) {
+        int idx = Arrays.binarySearch(ringHashes, hash(key));
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        // Wrap around past the last point
+        return ringOwners[idx == ringHashes.length ? 0 : idx];
+    }
+
+    @Override
+    public List<Integer> getFragmentIds() {
+        return fragmentIds;
+    }
+
+    public ConsistentHashRouter withFragment(int fragmentId) {
+        Set<Integer> ids = new TreeSet<>(fragmentIds);
+        ids.add(fragmentId);
+        return new ConsistentHashRouter(ids, virtualNodes);
+    }
+
+    public ConsistentHashRouter withoutFragment(int fragmentId) {
+        Set<Integer> ids = new TreeSet<>(fragmentIds);
+        ids.remove(fragmentId);
+        return new ConsistentHashRouter(ids, virtualNodes);
+    }
+
+    private static List<Integer> rangeOf(int n) {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+
+    /**
+     * First 64 bits of MurmurHash3_x64_128 over the UTF-8 bytes, seed 0.
+     */
+    static long hash(String key) {
+        byte[] data = key.getBytes(StandardCharsets.UTF_8);
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        int len = data.length;
+        int blocks = len / 16;
+        long h1 = 0;
+        long h2 = 0;
+
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLong(data, i * 16);
+            long k2 = getLong(data, i * 16 + 8);
+
+            k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // Tail: up to 15 remaining bytes
+        long k1 = 0;
+        long k2 = 0;
+        int tail = blocks * 16;
+        for (int i = len - tail - 1; i >= 8; i--) {
+            k2 ^= (data[tail + i] & 0xffL) << ((i - 8) * 8);
+        }
+        if (len - tail > 8) {
+            k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+        }
+        for (int i = Math.min(len - tail, 8) - 1; i >= 0; i--) {
+            k1 ^= (data[tail + i] & 0xffL) << (i * 8);
+        }
+        if (len - tail > 0) {
+            k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+        }
+
+        h1 ^= len;
+        h2 ^= len;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        return h1;
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xffL);
+        }
+        return value;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,56 @@
+package fragment;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Immutable snapshot of the Course dimension table (course_id -> department).
+ * Course is replicated to every fragment by scripts.sql, so any fragment can serve it.
+ * The client keeps one snapshot and maps per-course aggregates to departments with it;
+ * a refresh replaces the whole snapshot.
+ */
+public class CourseCatalog {
+
+    private final Map<String, String> departmentByCourse;
+
+    public CourseCatalog(Map<String, String> departmentByCourse) {
+        this.departmentByCourse = Collections.unmodifiableMap(new HashMap<>(departmentByCourse));
+    }
+
+    static CourseCatalog load(PooledConnection pooled) throws SQLException {
+        PreparedStatement pstmt = pooled.prepare("SELECT course_id, department FROM Course");
+        ResultSet rs = pstmt.executeQuery();
+
+        Map<String, String> departments = new HashMap<>();
+        while (rs.next()) {
+            departments.put(rs.getString("course_id"), rs.getString("department"));
+        }
+        rs.close();
+        return new CourseCatalog(departments);
+    }
+
+    /**
+     * Department of the course, or null if the course is unknown.
+     */
+    public String getDepartment(String courseId) {
+        return departmentByCourse.get(courseId);
+    }
+
+    public Map<String, String> asMap() {
+        return departmentByCourse;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CourseCatalog && departmentByCourse.equals(((CourseCatalog) o).departmentByCourse);
+    }
+
+    @Override
+    public int hashCode() {
+        return departmentByCourse.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return new TreeMap<>(departmentByCourse).toString();
+    }
+}
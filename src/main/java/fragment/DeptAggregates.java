@@ -0,0 +1,53 @@
+package fragment;
+import java.util.*;
+
+/**
+ * Running SUM(score) and COUNT(score) per department, kept up to date from each
+ * mutation so READ_SCORE needs no database scan.
+ *
+ * When the client cannot derive a mutation's exact effect (a queued batch write,
+ * or a statement that failed after it may have run) the aggregates are marked
+ * stale and rebuilt from a full recompute before they are read again.
+ */
+public class DeptAggregates {
+
+    private final Map<String, long[]> sumCountByDept = new HashMap<>();
+    private volatile boolean stale;
+
+    public DeptAggregates(Map<String, long[]> seed) {
+        reset(seed);
+    }
+
+    public synchronized void apply(String dept, long sumDelta, long countDelta) {
+        long[] acc = sumCountByDept.computeIfAbsent(dept, k -> new long[2]);
+        acc[0] += sumDelta;
+        acc[1] += countDelta;
+    }
+
+    /**
+     * Replace the running totals with a full recompute and clear the stale flag.
+     */
+    public synchronized void reset(Map<String, long[]> sums) {
+        sumCountByDept.clear();
+        for (Map.Entry<String, long[]> entry : sums.entrySet()) {
+            sumCountByDept.put(entry.getKey(), entry.getValue().clone());
+        }
+        stale = false;
+    }
+
+    public synchronized Map<String, long[]> snapshot() {
+        Map<String, long[]> copy = new HashMap<>();
+        for (Map.Entry<String, long[]> entry : sumCountByDept.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().clone());
+        }
+        return copy;
+    }
+
+    public void markStale() {
+        stale = true;
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+}
@@ -0,0 +1,508 @@
+package fragment;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * FragmentStore held in process memory, for simulations and benchmarks without a
+ * database and as a reference to check the SQL path against.
+ *
+ * Students are rows in parallel arrays, found through an open-addressing index from
+ * student_id to row number. Grades live in a second open-addressing index keyed by
+ * the primitive pair (student row, course row) packed into a long, so a grade lookup
+ * allocates nothing and boxes nothing. Each write also updates the course's
+ * SUM/COUNT and the student's grade count, so the per-course sums of READ_SCORE cost
+ * O(#courses). Constraints match the schema: duplicate keys fail with 23505 and a
+ * grade for an unknown student with 23503. Grades of courses missing from Course are
+ * kept and summed like any other, as Grade alone is in SQL.
+ *
+ * Thread-safe: reads share a read lock, writes take the write lock.
+ */
+public class EmbeddedFragmentStore implements FragmentStore {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Student rows
+    private final StringIntMap studentRows = new StringIntMap();
+    private String[] studentIds = new String[64];
+    private String[] names = new String[64];
+    private int[] ages = new int[64];
+    private String[] emails = new String[64];
+    private int[] gradeCounts = new int[64];
+    private int studentCount;
+
+    // Course rows, including course ids only seen in grades (no department), with
+    // the running SUM/COUNT of their grades
+    private final StringIntMap courseRows = new StringIntMap();
+    private String[] courseIds = new String[16];
+    private String[] courseDepartments = new String[16];
+    private long[] courseSums = new long[16];
+    private long[] courseCounts = new long[16];
+    private int courseCount;
+
+    // Grades: (student row << 32 | course row) -> score
+    private final LongIntMap grades = new LongIntMap();
+
+    /**
+     * A store holding the Course rows of the schema script.
+     */
+    public EmbeddedFragmentStore() throws SQLException {
+        this(SchemaManager.courseRows());
+    }
+
+    /**
+     * @param courses rows of {course_id, course_name, department}
+     */
+    public EmbeddedFragmentStore(List<String[]> courses) {
+        for (String[] course : courses) {
+            courseDepartments[courseRow(course[0])] = course[2];
+        }
+    }
+
+    @Override
+    public void insertStudent(String studentId, String name, int age, String email) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            if (studentRows.get(studentId) >= 0) {
+                throw new SQLException("duplicate key value violates unique constraint \"student_pkey\"", "23505");
+            }
+            int row = studentCount++;
+            if (row == studentIds.length) {
+                int size = row * 2;
+                studentIds = Arrays.copyOf(studentIds, size);
+                names = Arrays.copyOf(names, size);
+                ages = Arrays.copyOf(ages, size);
+                emails = Arrays.copyOf(emails, size);
+                gradeCounts = Arrays.copyOf(gradeCounts, size);
+            }
+            studentIds[row] = studentId;
+            names[row] = name;
+            ages[row] = age;
+            emails[row] = email;
+            studentRows.put(studentId, row);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void insertGrade(String studentId, String courseId, int score) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            int student = studentRows.get(studentId);
+            if (student < 0) {
+                throw new SQLException("insert or update on table \"grade\" violates foreign key constraint "
+                        + "\"grade_student_id_fkey\"", "23503");
+            }
+            int course = courseRow(courseId);
+            long key = gradeKey(student, course);
+            if (grades.containsKey(key)) {
+                throw new SQLException("duplicate key value violates unique constraint \"grade_pkey\"", "23505");
+            }
+            grades.put(key, score);
+            gradeCounts[student]++;
+            applyToCourse(course, score, 1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int updateGrade(String studentId, String courseId, int newScore) {
+        return replaceGrade(studentId, courseId, newScore) != null ? 1 : 0;
+    }
+
+    @Override
+    public Integer replaceGrade(String studentId, String courseId, int newScore) {
+        lock.writeLock().lock();
+        try {
+            long key = gradeKey(studentId, courseId);
+            if (key < 0 || !grades.containsKey(key)) {
+                return null;
+            }
+            int previous = grades.put(key, newScore);
+            applyToCourse((int) key, newScore - previous, 0);
+            return previous;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int deleteGrade(String studentId, String courseId) {
+        return removeGrade(studentId, courseId) != null ? 1 : 0;
+    }
+
+    @Override
+    public Integer removeGrade(String studentId, String courseId) {
+        lock.writeLock().lock();
+        try {
+            long key = gradeKey(studentId, courseId);
+            if (key < 0 || !grades.containsKey(key)) {
+                return null;
+            }
+            int previous = grades.remove(key);
+            gradeCounts[(int) (key >>> 32)]--;
+            applyToCourse((int) key, -previous, -1);
+            return previous;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String getStudentProfile(String studentId) {
+        lock.readLock().lock();
+        try {
+            int row = studentRows.get(studentId);
+            return row < 0 ? null : names[row] + "," + emails[row];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> getStudentProfiles(Collection<String> ids) {
+        lock.readLock().lock();
+        try {
+            Map<String, String> profiles = new HashMap<>();
+            for (String studentId : ids) {
+                int row = studentRows.get(studentId);
+                if (row >= 0) {
+                    profiles.put(studentId, names[row] + "," + emails[row]);
+                }
+            }
+            return profiles;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, long[]> getCourseSums() {
+        lock.readLock().lock();
+        try {
+            Map<String, long[]> sums = new HashMap<>();
+            for (int course = 0; course < courseCount; course++) {
+                // GROUP BY only yields courses that have grades
+                if (courseCounts[course] > 0) {
+                    sums.put(courseIds[course], new long[] { courseSums[course], courseCounts[course] });
+                }
+            }
+            return sums;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Integer> getStudentsWithMostCourses() {
+        lock.readLock().lock();
+        try {
+            int max = 0;
+            for (int row = 0; row < studentCount; row++) {
+                max = Math.max(max, gradeCounts[row]);
+            }
+            Map<String, Integer> top = new HashMap<>();
+            if (max > 0) {
+                for (int row = 0; row < studentCount; row++) {
+                    if (gradeCounts[row] == max) {
+                        top.put(studentIds[row], max);
+                    }
+                }
+            }
+            return top;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CourseCatalog getCourseCatalog() {
+        lock.readLock().lock();
+        try {
+            Map<String, String> departmentByCourse = new HashMap<>();
+            for (int course = 0; course < courseCount; course++) {
+                if (courseDepartments[course] != null) {
+                    departmentByCourse.put(courseIds[course], courseDepartments[course]);
+                }
+            }
+            return new CourseCatalog(departmentByCourse);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            studentRows.clear();
+            Arrays.fill(studentIds, 0, studentCount, null);
+            Arrays.fill(names, 0, studentCount, null);
+            Arrays.fill(emails, 0, studentCount, null);
+            Arrays.fill(gradeCounts, 0, studentCount, 0);
+            studentCount = 0;
+            grades.clear();
+            Arrays.fill(courseSums, 0);
+            Arrays.fill(courseCounts, 0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public int getStudentCount() {
+        lock.readLock().lock();
+        try {
+            return studentCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getGradeCount() {
+        lock.readLock().lock();
+        try {
+            return grades.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Row of the course, added without a department if it is new.
+     */
+    private int courseRow(String courseId) {
+        int row = courseRows.get(courseId);
+        if (row < 0) {
+            row = courseCount++;
+            if (row == courseIds.length) {
+                int size = row * 2;
+                courseIds = Arrays.copyOf(courseIds, size);
+                courseDepartments = Arrays.copyOf(courseDepartments, size);
+                courseSums = Arrays.copyOf(courseSums, size);
+                courseCounts = Arrays.copyOf(courseCounts, size);
+            }
+            courseIds[row] = courseId;
+            courseRows.put(courseId, row);
+        }
+        return row;
+    }
+
+    /**
+     * Key of an existing student's grade, or -1 if the student or course is unknown.
+     */
+    private long gradeKey(String studentId, String courseId) {
+        int student = studentRows.get(studentId);
+        int course = courseRows.get(courseId);
+        return student < 0 || course < 0 ? -1 : gradeKey(student, course);
+    }
+
+    private static long gradeKey(int student, int course) {
+        return ((long) student << 32) | course;
+    }
+
+    private void applyToCourse(int course, long sumDelta, long countDelta) {
+        courseSums[course] += sumDelta;
+        courseCounts[course] += countDelta;
+    }
+
+    /**
+     * Open-addressing hash index from String to a non-negative int, with linear
+     * probing and cached hashes. Entries are never removed one by one.
+     */
+    static final class StringIntMap {
+        private String[] keys = new String[64];
+        private int[] hashes = new int[64];
+        private int[] values = new int[64];
+        private int size;
+
+        /**
+         * @return the value, or -1 if absent
+         */
+        int get(String key) {
+            int hash = spread(key.hashCode());
+            int mask = keys.length - 1;
+            for (int i = hash & mask; keys[i] != null; i = (i + 1) & mask) {
+                if (hashes[i] == hash && keys[i].equals(key)) {
+                    return values[i];
+                }
+            }
+            return -1;
+        }
+
+        void put(String key, int value) {
+            if (2 * (size + 1) > keys.length) {
+                resize();
+            }
+            int hash = spread(key.hashCode());
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            while (keys[i] != null) {
+                if (hashes[i] == hash && keys[i].equals(key)) {
+                    values[i] = value;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            hashes[i] = hash;
+            values[i] = value;
+            size++;
+        }
+
+        void clear() {
+            Arrays.fill(keys, null);
+            size = 0;
+        }
+
+        private void resize() {
+            String[] oldKeys = keys;
+            int[] oldHashes = hashes;
+            int[] oldValues = values;
+            keys = new String[oldKeys.length * 2];
+            hashes = new int[keys.length];
+            values = new int[keys.length];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != null) {
+                    int i = oldHashes[j] & mask;
+                    while (keys[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    hashes[i] = oldHashes[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+
+        private static int spread(int h) {
+            // Student ids share long prefixes; mix so the low bits used as index vary
+            h *= 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * Open-addressing hash map from non-negative long keys to int values, with linear
+     * probing and backward-shift deletion (no tombstones).
+     */
+    static final class LongIntMap {
+        private static final long EMPTY = -1;
+
+        private long[] keys = newKeys(64);
+        private int[] values = new int[64];
+        private int size;
+
+        boolean containsKey(long key) {
+            return indexOf(key) >= 0;
+        }
+
+        /**
+         * @return the previous value, or 0 if the key was absent
+         */
+        int put(long key, int value) {
+            int index = indexOf(key);
+            if (index >= 0) {
+                int previous = values[index];
+                values[index] = value;
+                return previous;
+            }
+            if (2 * (size + 1) > keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+            return 0;
+        }
+
+        /**
+         * @return the removed value, or 0 if the key was absent
+         */
+        int remove(long key) {
+            int i = indexOf(key);
+            if (i < 0) {
+                return 0;
+            }
+            int removed = values[i];
+            int mask = keys.length - 1;
+
+            // Move later entries of the probe run back into the gap
+            int gap = i;
+            for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+                int home = slot(keys[j], mask);
+                // Entry j may fill the gap only if its home is not between gap and j
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+            }
+            keys[gap] = EMPTY;
+            size--;
+            return removed;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+
+        private int indexOf(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); keys[i] != EMPTY; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = newKeys(oldKeys.length * 2);
+            values = new int[keys.length];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != EMPTY) {
+                    int i = slot(oldKeys[j], mask);
+                    while (keys[i] != EMPTY) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+
+        private static long[] newKeys(int size) {
+            long[] keys = new long[size];
+            Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+
+        private static int slot(long key, int mask) {
+            // Murmur3 finalizer: neighbouring rows land far apart
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            return (int) key & mask;
+        }
+    }
+}
@@ -1,67 +1,575 @@
 package fragment;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
 import java.sql.*;
 import java.util.*;
-public class FragmentClient {
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+/**
+ * Client for the fragmented database.
+ *
+ * Safe to share between any number of application threads. Operations on different
+ * students run concurrently, on the same fragment as well as across fragments, up to
+ * the pool size of each fragment. Writes to one student are serialized by a striped
+ * per-student lock, so client-side state (write queue, profile cache, aggregates) sees
+ * them in the same order as the database. Every call is a single statement and
+ * completes before it returns, with queued writes flushed ahead of any read that could
+ * observe them, so each student's history is linearizable. Groups of writes that must
+ * apply together go through beginTransaction().
+ */
+public class FragmentClient implements WorkloadClient {
 
-    private Map<Integer, Connection> connectionPool;
-    private Router router;
-    private int numFragments;
+    // Queued and journaled writes run the store's statements as they are
+    private static final String INSERT_STUDENT_SQL = JdbcFragmentStore.INSERT_STUDENT_SQL;
+    private static final String INSERT_GRADE_SQL = JdbcFragmentStore.INSERT_GRADE_SQL;
+    private static final String UPDATE_GRADE_SQL = JdbcFragmentStore.UPDATE_GRADE_SQL;
+    private static final String DELETE_GRADE_SQL = JdbcFragmentStore.DELETE_GRADE_SQL;
+
+    // Course is replicated to every fragment and changed on all of them together
+    private static final String UPSERT_COURSE_SQL =
+            "INSERT INTO Course (course_id, course_name, department) VALUES (?, ?, ?) " +
+            "ON CONFLICT (course_id) DO UPDATE SET course_name = EXCLUDED.course_name, department = EXCLUDED.department";
+    private static final String DELETE_COURSE_SQL = "DELETE FROM Course WHERE course_id = ?";
+
+    // Stripes of the per-student write locks
+    private static final int STUDENT_LOCK_STRIPES = 1024;
+
+    // Size of each mapped write journal segment file
+    private static final int JOURNAL_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private final Map<Integer, FragmentConnectionPool> connectionPool;
+    // Where each fragment's rows live; over the primary pool unless embedded
+    private final Map<Integer, FragmentStore> stores = new ConcurrentHashMap<>();
+    private volatile boolean embedded;
+    private volatile Router router;
+    private volatile int numFragments;
+    private PoolConfig poolConfig;
+    private String jdbcUrlPattern = "jdbc:postgresql://localhost:5432/frag_%d";
+    private String dbUser = "user";
+    private String dbPassword = "password";
+    private volatile FragmentExecutor fragmentExecutor;
+    private ScheduledExecutorService maintenanceExecutor;
+    private volatile ScatterGather scatterGather;
+    private volatile WriteBatcher writeBatcher;
+    private volatile WriteJournal writeJournal;
+    private volatile ProfileCache profileCache;
+    private volatile LoadMonitor loadMonitor;
+    private volatile long hedgeDelayMillis = -1;
+    private final AtomicLong hedgedReads = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final Set<Integer> reconnecting = ConcurrentHashMap.newKeySet();
+    private volatile FragmentTopology topology;
+    private final Map<Integer, ReplicaSet> replicaSets = new ConcurrentHashMap<>();
+    private volatile ReadConsistency readConsistency = ReadConsistency.READ_YOUR_WRITES;
+    private volatile TwoPhaseCommit twoPhaseCommit;
+    private volatile Set<String> hotKeys = Collections.emptySet();
+    private final Map<String, String> hotProfiles = new ConcurrentHashMap<>();
+    private volatile CourseCatalog courseCatalog;
+    private volatile DeptAggregates deptAggregates;
+    private volatile boolean verifyAggregates;
+    private final AtomicLong aggregateMismatches = new AtomicLong();
+    private final ClientMetrics metrics = new ClientMetrics();
+
+    // Every operation holds the read lock; a rebalance chunk holds the write lock
+    private final ReentrantReadWriteLock topologyLock = new ReentrantReadWriteLock();
+
+    // Mutations of one student run one at a time, in the order they took the lock
+    private final StripedLocks studentLocks = new StripedLocks(STUDENT_LOCK_STRIPES);
+    private volatile Rebalancer rebalancer;
+    private volatile CompletableFuture<Rebalancer.Stats> rebalanceFuture;
 
     public FragmentClient(int numFragments) {
-        this.numFragments = numFragments;
-        this.router = new Router(numFragments);
-        this.connectionPool = new HashMap<>();
+        this(new ModuloRouter(numFragments), PoolConfig.defaults());
+    }
+
+    public FragmentClient(int numFragments, PoolConfig poolConfig) {
+        this(new ModuloRouter(numFragments), poolConfig);
+    }
+
+    public FragmentClient(Router router) {
+        this(router, PoolConfig.defaults());
+    }
+
+    public FragmentClient(Router router, PoolConfig poolConfig) {
+        this.numFragments = router.getFragmentIds().size();
+        this.router = router;
+        this.poolConfig = poolConfig;
+        this.connectionPool = new ConcurrentHashMap<>();
+
+        // Enough workers for every pooled connection of every fragment, so concurrent
+        // fan-out queries from many caller threads are limited by connections, not threads
+        this.fragmentExecutor = FragmentExecutor.platform(numFragments * poolConfig.getMaxSize());
+        this.scatterGather = new ScatterGather(fragmentExecutor);
+
+        // Background idle eviction for all fragment pools
+        this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fragment-pool-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * A client whose fragments are EmbeddedFragmentStores in process memory, each
+     * holding the schema's courses. No database is involved: setupConnections() has
+     * nothing to do, and everything else runs as over JDBC, e.g. the profile cache,
+     * incremental aggregates, load monitoring and metrics. Only the features built on
+     * SQL are not available: write batching, the write journal, transactions,
+     * replicas, rebalancing, bulk loading and Course changes.
+     */
+    public static FragmentClient embedded(Router router) throws SQLException {
+        FragmentClient client = new FragmentClient(router, PoolConfig.defaults());
+        List<String[]> courses = SchemaManager.courseRows();
+        for (int fragmentId : router.getFragmentIds()) {
+            client.stores.put(fragmentId, new EmbeddedFragmentStore(courses));
+        }
+        client.embedded = true;
+        return client;
+    }
+
+    /**
+     * Point the client at a different server. Call before setupConnections().
+     *
+     * @param jdbcUrlPattern String.format pattern receiving the fragment id,
+     *                       e.g. "jdbc:postgresql://localhost:5432/frag_%d"
+     */
+    public void setConnectionInfo(String jdbcUrlPattern, String user, String password) {
+        this.jdbcUrlPattern = jdbcUrlPattern;
+        this.dbUser = user;
+        this.dbPassword = password;
+    }
+
+    /**
+     * Run the per-fragment calls of fan-out queries on the given executor, e.g.
+     * FragmentExecutor.virtual(). The previous executor is shut down after the calls
+     * already submitted to it finish.
+     */
+    public void setFragmentExecutor(FragmentExecutor executor) {
+        executor.ensureParallelism(Math.max(numFragments, connectionPool.size()) * poolConfig.getMaxSize());
+        FragmentExecutor previous = fragmentExecutor;
+        fragmentExecutor = executor;
+        scatterGather = new ScatterGather(executor);
+        previous.shutdown();
     }
 
     /**
-     * TODO: Initialize JDBC connections to all N Fragments.
+     * Initialize a bounded connection pool for each of the N Fragments.
      */
     public void setupConnections() {
+        if (embedded) {
+            return;
+        }
         try {
             Class.forName("org.postgresql.Driver");
 
-            for (int i = 0; i < numFragments; i++) {
-                String url = "jdbc:postgresql://localhost:5432/frag_" + i;
-
-                Connection conn = DriverManager.getConnection(url, "user", "password");
-                connectionPool.put(i, conn);
-                System.out.println("Connected to frag_" + i);
+            for (int i : router.getFragmentIds()) {
+                try {
+                    openPool(i);
+                } catch (SQLException e) {
+                    // Keep the other fragments; this one is retried in the background
+                    System.out.println("Connection to frag_" + i + " failed: " + e.getMessage());
+                    scheduleReconnect(i, poolConfig.getBreakerOpenMillis());
+                }
             }
+
+            long period = Math.max(1_000, poolConfig.getIdleTimeoutMillis() / 2);
+            maintenanceExecutor.scheduleWithFixedDelay(() -> {
+                for (FragmentConnectionPool pool : connectionPool.values()) {
+                    pool.evictIdle();
+                }
+                for (ReplicaSet replicas : replicaSets.values()) {
+                    for (FragmentConnectionPool pool : replicas.getReplicaPools()) {
+                        pool.evictIdle();
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
         } catch (Exception e) {
             System.out.println("Connection failed");
             e.printStackTrace();
         }
     }
 
+    private void openPool(int fragmentId) throws SQLException {
+        FragmentTopology layout = topology;
+        String url = layout != null ? layout.getPrimaryUrl(fragmentId, jdbcUrlPattern) : String.format(jdbcUrlPattern, fragmentId);
+
+        FragmentConnectionPool pool = new FragmentConnectionPool(fragmentId, url, dbUser, dbPassword, poolConfig);
+        pool.setMetrics(metrics.forFragment(fragmentId));
+        try {
+            pool.start();
+            System.out.println("Connected to frag_" + fragmentId);
+
+            // A fresh fragment database gets the schema from scripts.sql
+            PooledConnection pooled = pool.borrow();
+            try {
+                if (SchemaManager.ensureSchema(pooled.connection())) {
+                    System.out.println("Created schema on frag_" + fragmentId);
+                }
+            } finally {
+                pooled.release();
+            }
+        } catch (SQLException | RuntimeException e) {
+            pool.close();
+            throw e;
+        }
+        connectionPool.put(fragmentId, pool);
+        stores.put(fragmentId, new JdbcFragmentStore(pool));
+        if (layout != null) {
+            openReplicas(fragmentId, pool, layout.getReplicaUrls(fragmentId));
+        }
+
+        // Keep one fan-out worker per pooled connection
+        fragmentExecutor.ensureParallelism(Math.max(numFragments, connectionPool.size()) * poolConfig.getMaxSize());
+    }
+
+    /**
+     * Pools for the fragment's replicas. A replica that cannot be reached yet is kept:
+     * reads sent to it fall back to the primary until its breaker opens, and later
+     * trials reconnect it.
+     */
+    private void openReplicas(int fragmentId, FragmentConnectionPool primary, List<String> urls) {
+        if (urls.isEmpty()) {
+            return;
+        }
+        List<FragmentConnectionPool> replicas = new ArrayList<>();
+        for (String url : urls) {
+            FragmentConnectionPool replica = new FragmentConnectionPool(fragmentId, url, dbUser, dbPassword, poolConfig);
+            try {
+                replica.start();
+                System.out.println("Connected to frag_" + fragmentId + " replica " + url);
+            } catch (SQLException e) {
+                System.out.println("Connection to frag_" + fragmentId + " replica " + url + " failed: " + e.getMessage());
+            }
+            replicas.add(replica);
+        }
+        replicaSets.put(fragmentId, new ReplicaSet(primary, replicas));
+    }
+
+    /**
+     * Primary and replicas of every fragment. Call before setupConnections(); without
+     * it each fragment is a single database found through the connection pattern.
+     */
+    public void setTopology(FragmentTopology topology) {
+        requireDatabase("Replicas");
+        this.topology = topology;
+    }
+
+    /**
+     * Where READ_PROFILE, READ_SCORE and READ_ALL are served when fragments have
+     * replicas. Writes always go to the primary. Defaults to READ_YOUR_WRITES.
+     * Incremental aggregates and rebalancing always read the primary.
+     */
+    public void setReadConsistency(ReadConsistency readConsistency) {
+        this.readConsistency = readConsistency;
+    }
+
+    public ReadConsistency getReadConsistency() {
+        return readConsistency;
+    }
+
+    /**
+     * Replica count and where reads went, per fragment with replicas.
+     */
+    public Map<Integer, String> getReplicaStats() {
+        Map<Integer, String> stats = new TreeMap<>();
+        for (Map.Entry<Integer, ReplicaSet> entry : replicaSets.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().toString());
+        }
+        return stats;
+    }
+
+    /**
+     * Pool figures of every replica, per fragment.
+     */
+    public Map<Integer, List<FragmentConnectionPool.Stats>> getReplicaPoolStats() {
+        Map<Integer, List<FragmentConnectionPool.Stats>> stats = new TreeMap<>();
+        for (Map.Entry<Integer, ReplicaSet> entry : replicaSets.entrySet()) {
+            List<FragmentConnectionPool.Stats> list = new ArrayList<>();
+            for (FragmentConnectionPool replica : entry.getValue().getReplicaPools()) {
+                list.add(replica.getStats());
+            }
+            stats.put(entry.getKey(), list);
+        }
+        return stats;
+    }
+
+    /**
+     * Retry opening a fragment that could not be reached, backing off exponentially up
+     * to the circuit breaker's longest open period. Calls for the fragment fail fast
+     * with "No connection pool" until it is back.
+     */
+    private void scheduleReconnect(int fragmentId, long delayMillis) {
+        reconnecting.add(fragmentId);
+        maintenanceExecutor.schedule(() -> {
+            if (maintenanceExecutor.isShutdown()) {
+                return;
+            }
+            if (connectionPool.containsKey(fragmentId) || !router.getFragmentIds().contains(fragmentId)) {
+                reconnecting.remove(fragmentId);
+                return;
+            }
+            try {
+                openPool(fragmentId);
+                reconnecting.remove(fragmentId);
+                System.out.println("Reconnected to frag_" + fragmentId);
+            } catch (Exception e) {
+                long next = Math.min(poolConfig.getBreakerMaxOpenMillis(), delayMillis * 2);
+                System.out.println("frag_" + fragmentId + " still unavailable, retrying in " + next + "ms");
+                scheduleReconnect(fragmentId, next);
+                return;
+            }
+
+            // The running totals never saw the fragment's grades, and Course may have
+            // changed on the others while it was away
+            markAggregatesStale();
+            try {
+                refreshCourseCatalog();
+            } catch (Exception e) {
+                // Another fragment may still be away; the next reconnect refreshes again
+                System.out.println("Could not refresh Course after reconnecting frag_" + fragmentId);
+                e.printStackTrace();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Every fragment that may hold students right now, in id order: the router's, plus
+     * a running rebalance's new ones. Fan-outs go to all of them, so a fragment whose
+     * pool is missing fails the call instead of being left out of the answer.
+     */
+    private List<Integer> activeFragmentIds() {
+        Set<Integer> fragmentIds = new TreeSet<>(router.getFragmentIds());
+        Rebalancer running = rebalancer;
+        if (running != null) {
+            fragmentIds.addAll(running.getTarget().getFragmentIds());
+        }
+        return new ArrayList<>(fragmentIds);
+    }
+
+    /**
+     * Circuit breaker state of every fragment; fragments still waiting for their first
+     * connection are reported OPEN.
+     */
+    public Map<Integer, CircuitBreaker.State> getFragmentHealth() {
+        Map<Integer, CircuitBreaker.State> health = new TreeMap<>();
+        for (int fragmentId : reconnecting) {
+            health.put(fragmentId, CircuitBreaker.State.OPEN);
+        }
+        for (FragmentConnectionPool pool : connectionPool.values()) {
+            health.put(pool.getFragmentId(), pool.getCircuitBreaker().getState());
+        }
+        return health;
+    }
+
+    /**
+     * Wait time and utilization of each fragment's connection pool.
+     */
+    public Map<Integer, FragmentConnectionPool.Stats> getPoolStats() {
+        Map<Integer, FragmentConnectionPool.Stats> stats = new TreeMap<>();
+        for (FragmentConnectionPool pool : connectionPool.values()) {
+            stats.put(pool.getFragmentId(), pool.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Per-operation and per-fragment latency histograms, throughput and error counts.
+     */
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Print the metrics report every periodMillis, as JSON lines or as text tables.
+     */
+    public void startMetricsReporting(long periodMillis, PrintStream out, boolean json) {
+        maintenanceExecutor.scheduleAtFixedRate(
+                () -> out.println(json ? metrics.getJsonReport() : metrics.getTextReport()),
+                periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue mutations per fragment and send them as JDBC batches of up to batchSize
+     * rows, flushed after lingerMillis at the latest and always before a read that
+     * could observe them.
+     */
+    public void enableWriteBatching(int batchSize, long lingerMillis) {
+        requireDatabase("Write batching");
+        if (writeJournal != null) {
+            throw new IllegalStateException("The write journal is enabled");
+        }
+        writeBatcher = new WriteBatcher(connectionPool, batchSize, lingerMillis);
+        long period = Math.max(1, lingerMillis / 2);
+        maintenanceExecutor.scheduleWithFixedDelay(writeBatcher::flushExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Acknowledge mutations once they are in a local journal in the directory, forced
+     * to disk with concurrent writers sharing each fsync, and apply them to the
+     * fragments in the background in transactions of up to batchSize entries. Entries
+     * a previous run left unapplied are replayed; ones the fragments already have are
+     * skipped. Reads apply the backlog they could observe first. Call after
+     * setupConnections(); not combined with write batching.
+     */
+    public void enableWriteJournal(String directory, int batchSize) throws IOException {
+        requireDatabase("The write journal");
+        if (writeBatcher != null) {
+            throw new IllegalStateException("Write batching is enabled");
+        }
+        WriteJournal journal = new WriteJournal(Paths.get(directory), connectionPool, batchSize, JOURNAL_SEGMENT_BYTES);
+        if (journal.pendingCount() > 0) {
+            // Totals seeded before the replay lands would miss it
+            markAggregatesStale();
+        }
+        writeJournal = journal;
+        maintenanceExecutor.scheduleWithFixedDelay(journal::retryPending, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public WriteJournal getWriteJournal() {
+        return writeJournal;
+    }
+
+    private void flushPendingWrites(int fragmentId) throws SQLException {
+        WriteBatcher batcher = writeBatcher;
+        if (batcher != null) {
+            batcher.flush(fragmentId);
+        }
+        WriteJournal journal = writeJournal;
+        if (journal != null) {
+            journal.flush(fragmentId);
+        }
+    }
+
+    void flushPendingWrites() throws SQLException {
+        WriteBatcher batcher = writeBatcher;
+        if (batcher != null) {
+            batcher.flushAll();
+        }
+        WriteJournal journal = writeJournal;
+        if (journal != null) {
+            journal.flushAll();
+        }
+    }
+
+    /**
+     * Cache up to maxEntries student profiles on the client. Hit, miss and eviction
+     * counters are available through getProfileCache().
+     */
+    public void enableProfileCache(int maxEntries) {
+        profileCache = new ProfileCache(maxEntries);
+    }
+
+    public ProfileCache getProfileCache() {
+        return profileCache;
+    }
+
+    private void invalidateCachedProfile(String studentId) {
+        ProfileCache cache = profileCache;
+        if (cache != null) {
+            cache.invalidate(studentId);
+        }
+        hotProfiles.remove(studentId);
+    }
+
+    private String cachedProfile(ProfileCache cache, String studentId) {
+        if (hotKeys.contains(studentId)) {
+            String pinned = hotProfiles.get(studentId);
+            if (pinned != null) {
+                return pinned;
+            }
+        }
+        return cache != null ? cache.get(studentId) : null;
+    }
+
+    private void cacheProfile(ProfileCache cache, String studentId, String profile) {
+        if (profile == null) {
+            return;
+        }
+        if (cache != null) {
+            cache.put(studentId, profile);
+        }
+        if (hotKeys.contains(studentId)) {
+            hotProfiles.put(studentId, profile);
+        }
+    }
+
+    /**
+     * Track per-fragment load and the hottest students over windows of windowMillis,
+     * reporting windows in which a fragment runs above imbalanceThreshold times the
+     * mean rate. With mitigate, hot students of an overloaded fragment have their
+     * profiles pinned in memory for as long as they stay hot.
+     */
+    public LoadMonitor enableLoadMonitoring(long windowMillis, double imbalanceThreshold, boolean mitigate) {
+        LoadMonitor monitor = new LoadMonitor(this, imbalanceThreshold, LoadMonitor.DEFAULT_HOT_KEY_SHARE, mitigate);
+        loadMonitor = monitor;
+        maintenanceExecutor.scheduleAtFixedRate(() -> {
+            try {
+                monitor.tick();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+        return monitor;
+    }
+
+    public LoadMonitor getLoadMonitor() {
+        return loadMonitor;
+    }
+
+    /**
+     * Students whose profiles are served from the pinned copy. Called by the load monitor.
+     */
+    void setHotKeys(Set<String> keys) {
+        hotKeys = keys;
+        hotProfiles.keySet().retainAll(keys);
+    }
+
     /**
      * TODO: Route the student to the correct shard and execute the INSERT.
      */
     public void insertStudent(String studentId, String name, int age, String email) {
+        long startNanos = System.nanoTime();
+        int fragmentId = -1;
+        topologyLock.readLock().lock();
+        Lock studentLock = studentLocks.forKey(studentId);
+        studentLock.lock();
         try {
             // Route to the correct fragment based on studentId
-            int fragmentId = router.getFragmentId(studentId);
-            
-            // Get the connection for this fragment
-            Connection conn = connectionPool.get(fragmentId);
-            
-            // Prepare the INSERT statement
-            String sql = "INSERT INTO Student  (student_id, name, age, email) VALUES (?, ?, ?, ?)";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
+            fragmentId = routeOp(studentId);
             
-            // Set parameters
-            pstmt.setString(1, studentId);
-            pstmt.setString(2, name);
-            pstmt.setInt(3, age);
-            pstmt.setString(4, email);
-            
-            // Execute the insert
-            pstmt.executeUpdate();
-            
-            // Close the prepared statement
-            pstmt.close();
+            // Queue the write when batching is enabled; reads flush it first
+            if (writeBatcher != null) {
+                // The queued insert may still fail, so only drop any cached entry
+                invalidateCachedProfile(studentId);
+                writeBatcher.add(fragmentId, INSERT_STUDENT_SQL, studentId, name, age, email);
+                return;
+            }
+
+            // Or acknowledge once journaled; applied in the background
+            if (writeJournal != null) {
+                invalidateCachedProfile(studentId);
+                writeJournal.append(fragmentId, INSERT_STUDENT_SQL, studentId, name, age, email);
+                return;
+            }
+
+            // Execute the insert on the fragment's store
+            store(fragmentId).insertStudent(studentId, name, age, email);
+
+            // Write through to the profile cache once the row exists
+            ProfileCache cache = profileCache;
+            if (cache != null) {
+                cache.put(studentId, name + "," + email);
+            }
             
         } catch (Exception e) {
+            recordError(Command.Type.INSERT_STUDENT, fragmentId);
             e.printStackTrace();
+        } finally {
+            studentLock.unlock();
+            topologyLock.readLock().unlock();
+            metrics.record(Command.Type.INSERT_STUDENT, startNanos);
         }
     }
 
@@ -69,269 +577,1248 @@ public class FragmentClient {
      * TODO: Route the grade to the correct shard and execute the INSERT.
      */
     public void insertGrade(String studentId, String courseId, int score) {
+        long startNanos = System.nanoTime();
+        int fragmentId = -1;
+        topologyLock.readLock().lock();
+        Lock studentLock = studentLocks.forKey(studentId);
+        studentLock.lock();
         try {
             // Route to the correct fragment based on studentId
-            int fragmentId = router.getFragmentId(studentId);
-            
-            // Get the connection for this fragment
-            Connection conn = connectionPool.get(fragmentId);
-            
-            // Prepare the INSERT statement
-            String sql = "INSERT INTO Grade (student_id, course_id, score) VALUES (?, ?, ?)";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            
-            // Set parameters
-            pstmt.setString(1, studentId);
-            pstmt.setString(2, courseId);
-            pstmt.setInt(3, score);
-            
-            // Execute the insert
-            pstmt.executeUpdate();
+            fragmentId = routeOp(studentId);
             
-            // Close the prepared statement
-            pstmt.close();
+            // Queue the write when batching is enabled; reads flush it first
+            if (writeBatcher != null) {
+                markAggregatesStale();
+                writeBatcher.add(fragmentId, INSERT_GRADE_SQL, studentId, courseId, score);
+                return;
+            }
+
+            // Or acknowledge once journaled; applied in the background
+            if (writeJournal != null) {
+                markAggregatesStale();
+                writeJournal.append(fragmentId, INSERT_GRADE_SQL, studentId, courseId, score);
+                return;
+            }
+
+            // Execute the insert on the fragment's store
+            store(fragmentId).insertGrade(studentId, courseId, score);
+            applyGradeDelta(courseId, score, 1);
             
         } catch (Exception e) {
+            recordError(Command.Type.INSERT_GRADE, fragmentId);
+            onWriteFailure(e);
             e.printStackTrace();
+        } finally {
+            studentLock.unlock();
+            topologyLock.readLock().unlock();
+            metrics.record(Command.Type.INSERT_GRADE, startNanos);
         }
     }
     public void updateGrade(String studentId, String courseId, int newScore) {
+        long startNanos = System.nanoTime();
+        int fragmentId = -1;
+        topologyLock.readLock().lock();
+        Lock studentLock = studentLocks.forKey(studentId);
+        studentLock.lock();
         try {
             // Route to the correct fragment based on studentId
-            int fragmentId = router.getFragmentId(studentId);
-            
-            // Get the connection for this fragment
-            Connection conn = connectionPool.get(fragmentId);
-            
-            // Prepare the UPDATE statement
-            String sql = "UPDATE Grade SET score = ? WHERE student_id = ? AND course_id = ?";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            
-            // Set parameters
-            pstmt.setInt(1, newScore);
-            pstmt.setString(2, studentId);
-            pstmt.setString(3, courseId);
-            
-            // Execute the update
-            pstmt.executeUpdate();
+            fragmentId = routeOp(studentId);
             
-            // Close the prepared statement
-            pstmt.close();
+            // Queue the write when batching is enabled; reads flush it first
+            if (writeBatcher != null) {
+                markAggregatesStale();
+                writeBatcher.add(fragmentId, UPDATE_GRADE_SQL, newScore, studentId, courseId);
+                return;
+            }
+
+            // Or acknowledge once journaled; applied in the background
+            if (writeJournal != null) {
+                markAggregatesStale();
+                writeJournal.append(fragmentId, UPDATE_GRADE_SQL, newScore, studentId, courseId);
+                return;
+            }
+
+            // Execute the update; the replaced score is only fetched for the running totals
+            FragmentStore store = store(fragmentId);
+            if (deptAggregates == null) {
+                store.updateGrade(studentId, courseId, newScore);
+            } else {
+                Integer previous = store.replaceGrade(studentId, courseId, newScore);
+                if (previous != null) {
+                    applyGradeDelta(courseId, newScore - previous, 0);
+                }
+            }
             
         } catch (Exception e) {
+            recordError(Command.Type.UPDATE_GRADE, fragmentId);
+            onWriteFailure(e);
             e.printStackTrace();
+        } finally {
+            studentLock.unlock();
+            topologyLock.readLock().unlock();
+            metrics.record(Command.Type.UPDATE_GRADE, startNanos);
         }
     }
 
     public void deleteStudentFromCourse(String studentId, String courseId) {
+        long startNanos = System.nanoTime();
+        int fragmentId = -1;
+        topologyLock.readLock().lock();
+        Lock studentLock = studentLocks.forKey(studentId);
+        studentLock.lock();
         try {
             // Route to the correct fragment based on studentId
-            int fragmentId = router.getFragmentId(studentId);
-            
-            // Get the connection for this fragment
-            Connection conn = connectionPool.get(fragmentId);
-            
-            // Prepare the DELETE statement
-            String sql = "DELETE FROM Grade WHERE student_id = ? AND course_id = ?";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
+            fragmentId = routeOp(studentId);
             
-            // Set parameters
-            pstmt.setString(1, studentId);
-            pstmt.setString(2, courseId);
-            
-            // Execute the delete
-            pstmt.executeUpdate();
-            
-            // Close the prepared statement
-            pstmt.close();
+            // Queue the write when batching is enabled; reads flush it first
+            if (writeBatcher != null) {
+                markAggregatesStale();
+                writeBatcher.add(fragmentId, DELETE_GRADE_SQL, studentId, courseId);
+                return;
+            }
+
+            // Or acknowledge once journaled; applied in the background
+            if (writeJournal != null) {
+                markAggregatesStale();
+                writeJournal.append(fragmentId, DELETE_GRADE_SQL, studentId, courseId);
+                return;
+            }
+
+            // Execute the delete; the removed score is only fetched for the running totals
+            FragmentStore store = store(fragmentId);
+            if (deptAggregates == null) {
+                store.deleteGrade(studentId, courseId);
+            } else {
+                Integer removed = store.removeGrade(studentId, courseId);
+                if (removed != null) {
+                    applyGradeDelta(courseId, -removed, -1);
+                }
+            }
             
         } catch (Exception e) {
+            recordError(Command.Type.DELETE_STUDENT_COURSE, fragmentId);
+            onWriteFailure(e);
             e.printStackTrace();
+        } finally {
+            studentLock.unlock();
+            topologyLock.readLock().unlock();
+            metrics.record(Command.Type.DELETE_STUDENT_COURSE, startNanos);
         }
     }
 
     /**
-     * TODO: Fetch the student's name and email.
+     * Start a group of writes that commits atomically, see FragmentTransaction.
      */
-    public String getStudentProfile(String studentId) {
+    public FragmentTransaction beginTransaction() {
+        requireDatabase("Transactions");
+        return new FragmentTransaction(this);
+    }
+
+    /**
+     * Allow transactions spanning fragments, coordinated by two-phase commit with its
+     * decisions logged to logPath. Call after setupConnections(). Whatever an earlier
+     * run with the same log left prepared on the fragments is resolved first.
+     * The fragments need max_prepared_transactions > 0.
+     */
+    public void enableTwoPhaseCommit(String logPath) throws IOException {
+        requireDatabase("Two-phase commit");
+        topologyLock.writeLock().lock();
         try {
-            // Route to the correct fragment based on studentId
-            int fragmentId = router.getFragmentId(studentId);
-            
-            // Get the connection for this fragment
-            Connection conn = connectionPool.get(fragmentId);
-            
-            // Prepare the SELECT statement
-            String sql = "SELECT name, email FROM Student WHERE student_id = ?";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            
-            // Set parameter
-            pstmt.setString(1, studentId);
-            
-            // Execute the query
-            ResultSet rs = pstmt.executeQuery();
-            
-            String result = null;
-            if (rs.next()) {
-                String name = rs.getString("name");
-                String email = rs.getString("email");
-                result = name + "," + email;
+            TwoPhaseCommit coordinator = new TwoPhaseCommit(this, new TransactionLog(Paths.get(logPath)),
+                    maintenanceExecutor, this::markAggregatesStale);
+            int resolved = coordinator.recover();
+            if (resolved > 0) {
+                markAggregatesStale();
+                System.out.println("Resolved " + resolved + " in-doubt transaction(s)");
             }
-            
-            // Close resources
-            rs.close();
-            pstmt.close();
-            
-            return result;
-            
-        } catch (Exception e) {
-            e.printStackTrace();
-            return "ERROR";
+            twoPhaseCommit = coordinator;
+        } finally {
+            topologyLock.writeLock().unlock();
         }
     }
 
     /**
-     * TODO: Calculate the average score per department.
+     * Resolve transactions still prepared on fragments that were unreachable during
+     * commit or recovery. Returns the number resolved.
      */
-    public String getAvgScoreByDept() {
+    public int recoverTransactions() throws IOException {
+        TwoPhaseCommit coordinator = twoPhaseCommit;
+        if (coordinator == null) {
+            throw new IllegalStateException("Two-phase commit is not enabled");
+        }
+        // No transaction may sit between its phases while recovery runs
+        topologyLock.writeLock().lock();
         try {
-            // As per assignment requirement, execute this query on a randomly selected fragment
-            if (connectionPool.isEmpty()) {
-                return "";
+            int resolved = coordinator.recover();
+            if (resolved > 0) {
+                markAggregatesStale();
             }
+            return resolved;
+        } finally {
+            topologyLock.writeLock().unlock();
+        }
+    }
 
-            List<Integer> fragmentIds = new ArrayList<>(connectionPool.keySet());
-            int randomIndex = new java.util.Random().nextInt(fragmentIds.size());
-            int fragmentId = fragmentIds.get(randomIndex);
+    public String getTransactionStats() {
+        TwoPhaseCommit coordinator = twoPhaseCommit;
+        return coordinator == null ? "2pc: disabled" : coordinator.toString();
+    }
 
-            Connection conn = connectionPool.get(fragmentId);
-            if (conn == null) {
-                return "";
+    /**
+     * Apply a FragmentTransaction: one local transaction when every student lives on
+     * the same fragment, two-phase commit otherwise.
+     */
+    void commitTransaction(List<FragmentTransaction.Op> ops) throws SQLException {
+        if (ops.isEmpty()) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        Set<String> studentIds = new HashSet<>();
+        for (FragmentTransaction.Op op : ops) {
+            studentIds.add(op.studentId);
+        }
+        topologyLock.readLock().lock();
+        List<Lock> locks = studentLocks.forKeys(studentIds);
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+        try {
+            // Group by owning fragment, keeping each fragment's operations in order
+            Map<Integer, List<FragmentTransaction.Op>> byFragment = new TreeMap<>();
+            for (FragmentTransaction.Op op : ops) {
+                byFragment.computeIfAbsent(routeOp(op.studentId), id -> new ArrayList<>()).add(op);
             }
-
-            String sql =
-                    "SELECT c.department AS dept, AVG(g.score) AS avg_score " +
-                    "FROM Grade g JOIN Course c ON g.course_id = c.course_id " +
-                    "GROUP BY c.department";
-
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            ResultSet rs = pstmt.executeQuery();
-
-            Map<String, Double> deptAvg = new HashMap<>();
-            while (rs.next()) {
-                String dept = rs.getString("dept");
-                double avg = rs.getDouble("avg_score");
-                deptAvg.put(dept, avg);
+            TwoPhaseCommit coordinator = twoPhaseCommit;
+            if (byFragment.size() > 1 && coordinator == null) {
+                throw new IllegalStateException("Transaction spans fragments " + byFragment.keySet()
+                        + "; call enableTwoPhaseCommit() first");
             }
 
-            rs.close();
-            pstmt.close();
+            // Single writes queued earlier for these students go first
+            for (int fragmentId : byFragment.keySet()) {
+                flushPendingWrites(fragmentId);
+            }
 
-            if (deptAvg.isEmpty()) {
-                return "";
+            if (byFragment.size() == 1) {
+                int fragmentId = byFragment.keySet().iterator().next();
+                PooledConnection pooled = borrow(fragmentId);
+                try {
+                    FragmentTransaction.execute(pooled, ops, "COMMIT");
+                } finally {
+                    pooled.release();
+                }
+            } else {
+                coordinator.commit(byFragment);
             }
 
-            List<String> departments = new ArrayList<>(deptAvg.keySet());
-            Collections.sort(departments);
+            for (FragmentTransaction.Op op : ops) {
+                switch (op.type) {
+                    case INSERT_STUDENT:
+                        invalidateCachedProfile(op.studentId);
+                        break;
+                    case INSERT_GRADE:
+                        applyGradeDelta(op.courseId, op.score, 1);
+                        break;
+                    default:
+                        // The replaced score is unknown without RETURNING
+                        markAggregatesStale();
+                }
+            }
+        } catch (SQLException e) {
+            for (FragmentTransaction.Op op : ops) {
+                metrics.recordError(op.type);
+            }
+            onWriteFailure(e);
+            throw e;
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).unlock();
+            }
+            topologyLock.readLock().unlock();
+            for (FragmentTransaction.Op op : ops) {
+                metrics.record(op.type, startNanos);
+            }
+        }
+    }
 
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < departments.size(); i++) {
-                String dept = departments.get(i);
-                double avg = deptAvg.get(dept);
+    /**
+     * TODO: Fetch the student's name and email.
+     */
+    public String getStudentProfile(String studentId) {
+        long startNanos = System.nanoTime();
+        int fragmentId = -1;
+        topologyLock.readLock().lock();
+        try {
+            // Route to the correct fragment based on studentId
+            fragmentId = routeOp(studentId);
 
-                if (i > 0) sb.append(";");
-                sb.append(dept)
-                  .append(":")
-                  .append(String.format(java.util.Locale.US, "%.1f", avg));
+            // Serve from the pinned hot keys or the profile cache when possible
+            ProfileCache cache = profileCache;
+            String cached = cachedProfile(cache, studentId);
+            if (cached != null) {
+                return cached;
             }
 
-            return sb.toString();
+            // Pending writes for this student must be visible to the read
+            flushPendingWrites(fragmentId);
 
+            String result = hedgeDelayMillis >= 0
+                    ? hedgedProfileQuery(fragmentId, studentId)
+                    : onReadStore(fragmentId, store -> store.getStudentProfile(studentId));
+
+            cacheProfile(cache, studentId, result);
+            
+            return result;
+            
         } catch (Exception e) {
+            recordError(Command.Type.READ_PROFILE, fragmentId);
             e.printStackTrace();
             return "ERROR";
+        } finally {
+            topologyLock.readLock().unlock();
+            metrics.record(Command.Type.READ_PROFILE, startNanos);
         }
     }
 
     /**
-     * TODO: Find all the students that have taken most number of courses
+     * Hedge READ_PROFILE: when the query has not answered within delayMillis, send a
+     * second one and take whichever answer arrives first. The slower query finishes in
+     * the background and releases its connection. With delay 0 the hedge is sent at
+     * the fragment's current p95 connection hold time.
      */
-    public String getAllStudentsWithMostCourses() {
-        try {
-            // As per assignment requirement, execute this query on a randomly selected fragment
-            if (connectionPool.isEmpty()) {
-                return "";
-            }
+    public void enableHedgedReads(long delayMillis) {
+        hedgeDelayMillis = Math.max(0, delayMillis);
+    }
 
-            List<Integer> fragmentIds = new ArrayList<>(connectionPool.keySet());
-            int randomIndex = new java.util.Random().nextInt(fragmentIds.size());
-            int fragmentId = fragmentIds.get(randomIndex);
+    public long getHedgedReads() {
+        return hedgedReads.get();
+    }
 
-            Connection conn = connectionPool.get(fragmentId);
-            if (conn == null) {
-                return "";
-            }
+    /**
+     * Hedged reads answered by the second query.
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    private String hedgedProfileQuery(int fragmentId, String studentId) throws Exception {
+        List<FragmentStore> targets = readTargets(fragmentId);
+        FragmentExecutor executor = fragmentExecutor;
+        BlockingQueue<ReadOutcome> outcomes = new LinkedBlockingQueue<>();
+
+        FragmentStore primary = targets.get(targets.size() - 1);
+        executor.submit(() -> outcomes.add(readOutcome(targets.get(0), primary, studentId, false)));
+        ReadOutcome outcome = outcomes.poll(hedgeDelayNanos(fragmentId), TimeUnit.NANOSECONDS);
+        int pending = 1;
+        if (outcome == null) {
+            // Too slow: ask again, on the next read target when there is one
+            hedgedReads.incrementAndGet();
+            FragmentStore hedgeTarget = targets.get(1 % targets.size());
+            executor.submit(() -> outcomes.add(readOutcome(hedgeTarget, primary, studentId, true)));
+            pending = 2;
+            outcome = outcomes.take();
+        }
+
+        Exception failure = null;
+        while (true) {
+            pending--;
+            if (outcome.failure == null) {
+                if (outcome.hedge) {
+                    hedgeWins.incrementAndGet();
+                }
+                return outcome.profile;
+            }
+            if (failure == null) {
+                failure = outcome.failure;
+            }
+            if (pending == 0) {
+                throw failure;
+            }
+            outcome = outcomes.take();
+        }
+    }
+
+    private ReadOutcome readOutcome(FragmentStore store, FragmentStore primary, String studentId, boolean hedge) {
+        try {
+            return new ReadOutcome(readWithFallback(store, primary, target -> target.getStudentProfile(studentId)),
+                    null, hedge);
+        } catch (Exception e) {
+            return new ReadOutcome(null, e, hedge);
+        }
+    }
+
+    /**
+     * Fixed hedge delay, or with delay 0 the fragment's p95 connection hold time once
+     * enough calls have been seen.
+     */
+    private long hedgeDelayNanos(int fragmentId) {
+        if (hedgeDelayMillis > 0) {
+            return TimeUnit.MILLISECONDS.toNanos(hedgeDelayMillis);
+        }
+        LatencyHistogram hold = metrics.forFragment(fragmentId).getHoldLatency();
+        if (hold.getCount() < 100) {
+            return TimeUnit.MILLISECONDS.toNanos(10);
+        }
+        return Math.max(TimeUnit.MICROSECONDS.toNanos(100), hold.getValueAtPercentile(95));
+    }
+
+    /**
+     * Stores that can answer a read for a fragment: the one chosen under the read
+     * consistency, then the primary. A hedged read goes to the second one, or to
+     * another connection of the primary when that is the only one.
+     */
+    private List<FragmentStore> readTargets(int fragmentId) throws SQLException {
+        FragmentStore primary = store(fragmentId);
+        FragmentStore chosen = chooseReadStore(fragmentId, primary);
+        return chosen == primary ? Collections.singletonList(primary) : Arrays.asList(chosen, primary);
+    }
+
+    private FragmentStore chooseReadStore(int fragmentId, FragmentStore primary) throws SQLException {
+        ReplicaSet replicas = replicaSets.get(fragmentId);
+        if (replicas == null) {
+            return primary;
+        }
+        FragmentConnectionPool pool = replicas.choose(readConsistency);
+        return pool == replicas.getPrimary() ? primary : new JdbcFragmentStore(pool);
+    }
+
+    /**
+     * Run a read on the store chosen for the fragment under the read consistency.
+     */
+    private <T> T onReadStore(int fragmentId, StoreRead<T> read) throws SQLException {
+        FragmentStore primary = store(fragmentId);
+        return readWithFallback(chooseReadStore(fragmentId, primary), primary, read);
+    }
+
+    /**
+     * Run a read on store, and on the primary instead when store is a replica that
+     * cannot serve it right now (unreachable, breaker open, cancelled by a recovery
+     * conflict).
+     */
+    private <T> T readWithFallback(FragmentStore store, FragmentStore primary, StoreRead<T> read)
+            throws SQLException {
+        if (store != primary) {
+            try {
+                return read.run(store);
+            } catch (SQLException e) {
+                String state = e.getSQLState();
+                if (state != null && !state.startsWith("08") && !state.startsWith("57") && !state.equals("40001")) {
+                    throw e;
+                }
+            }
+        }
+        return read.run(primary);
+    }
+
+    private interface StoreRead<T> {
+        T run(FragmentStore store) throws SQLException;
+    }
+
+    private static class ReadOutcome {
+        final String profile;
+        final Exception failure;
+        final boolean hedge;
+
+        ReadOutcome(String profile, Exception failure, boolean hedge) {
+            this.profile = profile;
+            this.failure = failure;
+            this.hedge = hedge;
+        }
+    }
+
+    /**
+     * Profiles of many students at once, in the order of studentIds: "name,email",
+     * null for an unknown student, or "ERROR" when its fragment failed. Ids are grouped
+     * by fragment and each fragment answers its whole group with one lookup, a
+     * student_id = ANY(?) query over JDBC; the fragments are queried in parallel.
+     */
+    public List<String> getStudentProfiles(Collection<String> studentIds) {
+        long startNanos = System.nanoTime();
+        List<String> ids = new ArrayList<>(studentIds);
+        Map<String, String> found = new HashMap<>();
+        topologyLock.readLock().lock();
+        try {
+            // Group the ids the cache cannot answer by their fragment
+            ProfileCache cache = profileCache;
+            Map<Integer, Set<String>> byFragment = new TreeMap<>();
+            for (String studentId : ids) {
+                int fragmentId = routeOp(studentId);
+                String cached = cachedProfile(cache, studentId);
+                if (cached != null) {
+                    found.put(studentId, cached);
+                } else {
+                    byFragment.computeIfAbsent(fragmentId, k -> new LinkedHashSet<>()).add(studentId);
+                }
+            }
+
+            // Scatter: one query per fragment; a failing fragment only fails its own ids
+            List<Map<String, String>> partials = scatterGather.gather(byFragment.keySet(), fragmentId -> {
+                Set<String> group = byFragment.get(fragmentId);
+                Map<String, String> partial = new HashMap<>();
+                try {
+                    // Pending writes for these students must be visible to the read
+                    flushPendingWrites(fragmentId);
+
+                    partial.putAll(onReadStore(fragmentId, store -> store.getStudentProfiles(group)));
+                } catch (Exception e) {
+                    recordError(Command.Type.READ_PROFILE, fragmentId);
+                    e.printStackTrace();
+                    for (String studentId : group) {
+                        partial.put(studentId, "ERROR");
+                    }
+                }
+                return partial;
+            });
+
+            // Gather
+            for (Map<String, String> partial : partials) {
+                for (Map.Entry<String, String> entry : partial.entrySet()) {
+                    found.put(entry.getKey(), entry.getValue());
+                    if (!"ERROR".equals(entry.getValue())) {
+                        cacheProfile(cache, entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            recordError(Command.Type.READ_PROFILE, -1);
+            e.printStackTrace();
+            for (String studentId : ids) {
+                found.putIfAbsent(studentId, "ERROR");
+            }
+        } finally {
+            topologyLock.readLock().unlock();
+            // Every id counts as one READ_PROFILE taking the whole batch's latency
+            for (int i = 0; i < ids.size(); i++) {
+                metrics.record(Command.Type.READ_PROFILE, startNanos);
+            }
+        }
+
+        List<String> result = new ArrayList<>(ids.size());
+        for (String studentId : ids) {
+            result.add(found.get(studentId));
+        }
+        return result;
+    }
+
+    /**
+     * Calculate the average score per department across all fragments.
+     * With incremental aggregates enabled this is answered from the running totals;
+     * otherwise each fragment returns partial SUM/COUNT per department in parallel
+     * and the partials are merged here so the result matches a single database.
+     */
+    public String getAvgScoreByDept() {
+        long startNanos = System.nanoTime();
+        try {
+            return avgScoreByDept();
+        } finally {
+            metrics.record(Command.Type.READ_SCORE, startNanos);
+        }
+    }
+
+    private String avgScoreByDept() {
+        try {
+            DeptAggregates aggregates = deptAggregates;
+            if (aggregates != null) {
+                if (verifyAggregates) {
+                    return verifyDeptAggregates(aggregates);
+                }
+                if (aggregates.isStale()) {
+                    reseedDeptAggregates(aggregates);
+                }
+                return formatDeptAverages(aggregates.snapshot());
+            }
+        } catch (Exception e) {
+            recordError(Command.Type.READ_SCORE, -1);
+            e.printStackTrace();
+            return "ERROR";
+        }
+
+        topologyLock.readLock().lock();
+        try {
+            if (stores.isEmpty()) {
+                return "";
+            }
+
+            // Every fragment is read, so every pending write must land first
+            flushPendingWrites();
+
+            return formatDeptAverages(computeDeptSums(true));
+
+        } catch (Exception e) {
+            recordError(Command.Type.READ_SCORE, -1);
+            e.printStackTrace();
+            return "ERROR";
+        } finally {
+            topologyLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Full recompute: partial SUM/COUNT per course from every fragment, merged and
+     * mapped to departments through the client's Course catalog. Fragments only scan
+     * Grade; grades of courses missing from Course are dropped, as the join did.
+     * Replicas are only used when replicaReads is set; the running totals must be
+     * seeded from the primaries, which their deltas are applied against.
+     */
+    private Map<String, long[]> computeDeptSums(boolean replicaReads) throws Exception {
+        // Scatter: partial aggregates per course from every fragment
+        List<Map<String, long[]>> partials = scatterGather.gather(activeFragmentIds(), tracked(fragmentId ->
+                replicaReads
+                        ? onReadStore(fragmentId, FragmentStore::getCourseSums)
+                        : store(fragmentId).getCourseSums()));
+
+        // Gather: merge SUM and COUNT per department
+        CourseCatalog catalog = courseCatalog();
+        Map<String, long[]> merged = new HashMap<>();
+        for (Map<String, long[]> partial : partials) {
+            for (Map.Entry<String, long[]> entry : partial.entrySet()) {
+                String dept = catalog.getDepartment(entry.getKey());
+                if (dept == null) {
+                    continue;
+                }
+                long[] acc = merged.computeIfAbsent(dept, k -> new long[2]);
+                acc[0] += entry.getValue()[0];
+                acc[1] += entry.getValue()[1];
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * The Course catalog, loaded on first use.
+     */
+    public CourseCatalog getCourseCatalog() throws Exception {
+        return courseCatalog();
+    }
+
+    private CourseCatalog courseCatalog() throws Exception {
+        CourseCatalog catalog = courseCatalog;
+        if (catalog == null) {
+            catalog = refreshCourseCatalog();
+        }
+        return catalog;
+    }
+
+    /**
+     * Reload Course from every fragment and install it. Copies that disagree are
+     * reported and the lowest fragment's copy wins. When departments change, the
+     * incremental aggregates are rebuilt before their next read.
+     */
+    public CourseCatalog refreshCourseCatalog() throws Exception {
+        List<Integer> fragmentIds = activeFragmentIds();
+        List<CourseCatalog> copies = scatterGather.gather(fragmentIds, tracked(fragmentId ->
+                store(fragmentId).getCourseCatalog()));
+
+        CourseCatalog loaded = copies.get(0);
+        for (int i = 1; i < copies.size(); i++) {
+            if (!copies.get(i).equals(loaded)) {
+                System.out.println("Course differs between frag_" + fragmentIds.get(0)
+                        + " and frag_" + fragmentIds.get(i) + ", using frag_" + fragmentIds.get(0));
+            }
+        }
+
+        CourseCatalog previous = courseCatalog;
+        if (!loaded.equals(previous)) {
+            courseCatalog = loaded;
+            if (previous != null) {
+                markAggregatesStale();
+            }
+        }
+        return courseCatalog;
+    }
+
+    /**
+     * Reload the catalog every periodMillis so Course changes made outside this
+     * client are picked up.
+     */
+    public void enableCourseCatalogRefresh(long periodMillis) {
+        maintenanceExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                refreshCourseCatalog();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Insert or change a course on every fragment in one coordinated operation.
+     */
+    public void upsertCourse(String courseId, String courseName, String department) throws Exception {
+        updateCourses(UPSERT_COURSE_SQL, courseId, courseName, department);
+    }
+
+    /**
+     * Remove a course from every fragment. Its grades stop counting towards READ_SCORE.
+     */
+    public void deleteCourse(String courseId) throws Exception {
+        updateCourses(DELETE_COURSE_SQL, courseId);
+    }
+
+    /**
+     * Run one Course statement on every fragment. All fragments execute it inside an
+     * open transaction first and commit only if every one succeeded, so a rejected
+     * change leaves every copy untouched. Holds the write lock, so no READ_SCORE sees
+     * a mix of old and new departments.
+     */
+    private void updateCourses(String sql, Object... params) throws Exception {
+        requireDatabase("Course changes");
+        topologyLock.writeLock().lock();
+        List<PooledConnection> borrowed = new ArrayList<>();
+        try {
+            for (int fragmentId : activeFragmentIds()) {
+                PooledConnection pooled = borrow(fragmentId);
+                borrowed.add(pooled);
+                pooled.connection().setAutoCommit(false);
+                PreparedStatement pstmt = pooled.prepare(sql);
+                for (int i = 0; i < params.length; i++) {
+                    pstmt.setObject(i + 1, params[i]);
+                }
+                pstmt.executeUpdate();
+            }
+
+            for (PooledConnection pooled : borrowed) {
+                pooled.connection().commit();
+            }
+        } catch (Exception e) {
+            for (PooledConnection pooled : borrowed) {
+                try {
+                    pooled.connection().rollback();
+                } catch (SQLException rollbackFailure) {
+                    // Already committed or connection lost; the refresh below reports divergence
+                }
+            }
+            throw e;
+        } finally {
+            for (PooledConnection pooled : borrowed) {
+                try {
+                    pooled.connection().setAutoCommit(true);
+                } catch (SQLException e) {
+                    // The pool drops closed connections
+                }
+                pooled.release();
+            }
+            try {
+                refreshCourseCatalog();
+            } finally {
+                topologyLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Maintain per-department SUM/COUNT on the client from every grade mutation, so
+     * READ_SCORE costs O(#departments) and no database scan. With verify set, every
+     * READ_SCORE also runs the full recompute, reports any difference and returns
+     * the recomputed value.
+     */
+    public void enableIncrementalAggregates(boolean verify) throws Exception {
+        topologyLock.writeLock().lock();
+        try {
+            flushPendingWrites();
+
+            verifyAggregates = verify;
+            deptAggregates = new DeptAggregates(computeDeptSums(false));
+        } finally {
+            topologyLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * READ_SCORE results where the incremental value disagreed with a full recompute.
+     */
+    public long getAggregateMismatches() {
+        return aggregateMismatches.get();
+    }
+
+    private void applyGradeDelta(String courseId, long sumDelta, long countDelta) {
+        DeptAggregates aggregates = deptAggregates;
+        if (aggregates == null) {
+            return;
+        }
+        // Grades for courses missing from Course never join in the full query either
+        String dept = courseCatalog.getDepartment(courseId);
+        if (dept != null) {
+            aggregates.apply(dept, sumDelta, countDelta);
+        }
+    }
 
-            String sql =
-                    "SELECT student_id, COUNT(*) AS cnt " +
-                    "FROM Grade " +
-                    "GROUP BY student_id";
+    private void markAggregatesStale() {
+        DeptAggregates aggregates = deptAggregates;
+        if (aggregates != null) {
+            aggregates.markStale();
+        }
+    }
+
+    /**
+     * A statement rejected by the server (integrity violation, bad data, ...) changed
+     * nothing. Anything else, e.g. a dropped connection, may or may not have applied.
+     */
+    private void onWriteFailure(Exception e) {
+        if (e instanceof SQLException) {
+            String state = ((SQLException) e).getSQLState();
+            if (state != null && !state.startsWith("08")) {
+                return;
+            }
+        }
+        markAggregatesStale();
+    }
+
+    /**
+     * Rebuild the running totals. Holds the write lock so no mutation lands between
+     * the recompute and the reset.
+     */
+    private void reseedDeptAggregates(DeptAggregates aggregates) throws Exception {
+        topologyLock.writeLock().lock();
+        try {
+            if (aggregates.isStale()) {
+                flushPendingWrites();
+                aggregates.reset(computeDeptSums(false));
+            }
+        } finally {
+            topologyLock.writeLock().unlock();
+        }
+    }
+
+    private String verifyDeptAggregates(DeptAggregates aggregates) throws Exception {
+        topologyLock.writeLock().lock();
+        try {
+            flushPendingWrites();
+            Map<String, long[]> full = computeDeptSums(false);
+            String expected = formatDeptAverages(full);
+
+            if (!aggregates.isStale()) {
+                Map<String, long[]> incremental = aggregates.snapshot();
+                if (!sameSums(incremental, full)) {
+                    aggregateMismatches.incrementAndGet();
+                    System.out.println("Incremental aggregate mismatch: incremental="
+                            + formatDeptAverages(incremental) + " full=" + expected);
+                }
+            }
+            aggregates.reset(full);
+            return expected;
+        } finally {
+            topologyLock.writeLock().unlock();
+        }
+    }
 
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            ResultSet rs = pstmt.executeQuery();
+    /**
+     * Exact comparison of two SUM/COUNT maps, ignoring departments with no rows.
+     */
+    private static boolean sameSums(Map<String, long[]> a, Map<String, long[]> b) {
+        Set<String> departments = new HashSet<>(a.keySet());
+        departments.addAll(b.keySet());
+        for (String dept : departments) {
+            long[] x = a.getOrDefault(dept, new long[2]);
+            long[] y = b.getOrDefault(dept, new long[2]);
+            if (x[0] != y[0] || x[1] != y[1]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-            int maxCnt = 0;
-            List<String> topStudents = new ArrayList<>();
+    /**
+     * Format merged SUM/COUNT pairs as "dept:avg;dept:avg" sorted by department.
+     */
+    static String formatDeptAverages(Map<String, long[]> sumCountByDept) {
+        List<String> departments = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : sumCountByDept.entrySet()) {
+            // A department with no graded rows has no average, same as AVG over zero rows
+            if (entry.getValue()[1] > 0) {
+                departments.add(entry.getKey());
+            }
+        }
 
-            while (rs.next()) {
-                String studentId = rs.getString("student_id");
-                int cnt = rs.getInt("cnt");
+        if (departments.isEmpty()) {
+            return "";
+        }
+        Collections.sort(departments);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < departments.size(); i++) {
+            String dept = departments.get(i);
+            long[] sumCount = sumCountByDept.get(dept);
+            double avg = (double) sumCount[0] / sumCount[1];
+
+            if (i > 0) sb.append(";");
+            sb.append(dept)
+              .append(":")
+              .append(String.format(java.util.Locale.US, "%.1f", avg));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Gather: keep only the per-fragment groups that reach the global maximum.
+     */
+    static String formatTopStudents(List<Map<String, Integer>> partials) {
+        int maxCnt = 0;
+        List<String> topStudents = new ArrayList<>();
+
+        for (Map<String, Integer> localTop : partials) {
+            for (Map.Entry<String, Integer> entry : localTop.entrySet()) {
+                int cnt = entry.getValue();
 
                 if (cnt > maxCnt) {
                     maxCnt = cnt;
                     topStudents.clear();
-                    topStudents.add(studentId);
+                    topStudents.add(entry.getKey());
                 } else if (cnt == maxCnt && cnt > 0) {
-                    topStudents.add(studentId);
+                    topStudents.add(entry.getKey());
                 }
             }
+        }
 
-            rs.close();
-            pstmt.close();
+        if (topStudents.isEmpty() || maxCnt == 0) {
+            return "";
+        }
+
+        // Sort for deterministic output
+        Collections.sort(topStudents);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < topStudents.size(); i++) {
+            if (i > 0) sb.append(",");
+            sb.append(topStudents.get(i));
+        }
+
+        return sb.toString();
+    }
 
-            if (topStudents.isEmpty() || maxCnt == 0) {
+    /**
+     * Find all the students that have taken most number of courses.
+     * Router keeps all Grade rows of a student on one fragment, so each fragment
+     * pushes down its own local maximum group and only the ties come back.
+     */
+    public String getAllStudentsWithMostCourses() {
+        long startNanos = System.nanoTime();
+        topologyLock.readLock().lock();
+        try {
+            if (stores.isEmpty()) {
                 return "";
             }
 
-            // Sort for deterministic output
-            Collections.sort(topStudents);
+            // Every fragment is read, so every pending write must land first
+            flushPendingWrites();
 
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < topStudents.size(); i++) {
-                if (i > 0) sb.append(",");
-                sb.append(topStudents.get(i));
-            }
+            // Scatter: local argmax group from every fragment
+            List<Map<String, Integer>> partials = scatterGather.gather(activeFragmentIds(), tracked(fragmentId ->
+                    onReadStore(fragmentId, FragmentStore::getStudentsWithMostCourses)));
 
-            return sb.toString();
+            return formatTopStudents(partials);
 
         } catch (Exception e) {
+            recordError(Command.Type.READ_ALL, -1);
             e.printStackTrace();
             return "ERROR";
+        } finally {
+            topologyLock.readLock().unlock();
+            metrics.record(Command.Type.READ_ALL, startNanos);
         }
     }
 
-    public void closeConnections() {
+    /**
+     * Bulk-load students and grades through COPY, bypassing the per-row path.
+     * All other calls wait until the loader is finished or closed.
+     */
+    public BulkLoader openBulkLoader() throws SQLException {
+        requireDatabase("Bulk loading");
+        topologyLock.writeLock().lock();
         try {
-            // Close all connections in the connection pool
-            for (Connection conn : connectionPool.values()) {
-                if (conn != null && !conn.isClosed()) {
-                    conn.close();
+            if (rebalancer != null) {
+                throw new IllegalStateException("Cannot bulk load while a rebalance is running");
+            }
+            flushPendingWrites();
+            return new BulkLoader(this, BulkLoader.DEFAULT_CHUNK_BYTES);
+        } catch (SQLException | RuntimeException e) {
+            topologyLock.writeLock().unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Called by the loader once it has finished or been cancelled.
+     */
+    void finishBulkLoad() {
+        // The running totals know nothing about the loaded grades
+        markAggregatesStale();
+        topologyLock.writeLock().unlock();
+    }
+
+    /**
+     * Add a fragment and migrate its share of the keys to it in the background.
+     * The database frag_N must exist; the schema is created if it is missing.
+     */
+    public CompletableFuture<Rebalancer.Stats> addFragment(int fragmentId) throws SQLException {
+        Router current = router;
+        Router target;
+        if (current instanceof ConsistentHashRouter) {
+            target = ((ConsistentHashRouter) current).withFragment(fragmentId);
+        } else if (current instanceof ModuloRouter && fragmentId == current.getFragmentIds().size()) {
+            target = new ModuloRouter(fragmentId + 1);
+        } else {
+            throw new IllegalArgumentException("Cannot add frag_" + fragmentId + " to " + current.getClass().getSimpleName());
+        }
+        return rebalanceTo(target, 100, 20);
+    }
+
+    /**
+     * Drain a fragment onto the remaining ones in the background, then close its pool.
+     */
+    public CompletableFuture<Rebalancer.Stats> removeFragment(int fragmentId) throws SQLException {
+        Router current = router;
+        Router target;
+        if (current instanceof ConsistentHashRouter) {
+            target = ((ConsistentHashRouter) current).withoutFragment(fragmentId);
+        } else if (current instanceof ModuloRouter && fragmentId == current.getFragmentIds().size() - 1) {
+            target = new ModuloRouter(fragmentId);
+        } else {
+            throw new IllegalArgumentException("Cannot remove frag_" + fragmentId + " from " + current.getClass().getSimpleName());
+        }
+        return rebalanceTo(target, 100, 20);
+    }
+
+    /**
+     * Move every key whose owner differs under the target router, chunkSize keys at a
+     * time with pauseMillis between chunks, while the client keeps serving requests.
+     * Routing switches to the target atomically once the last chunk has moved.
+     */
+    public synchronized CompletableFuture<Rebalancer.Stats> rebalanceTo(Router target, int chunkSize, long pauseMillis)
+            throws SQLException {
+        requireDatabase("Rebalancing");
+        Rebalancer pending = rebalancer;
+        if (pending != null) {
+            throw new IllegalStateException(pending.isFailed()
+                    ? "A failed rebalance is pending, call resumeRebalance()"
+                    : "A rebalance is already running");
+        }
+        for (int fragmentId : target.getFragmentIds()) {
+            if (!connectionPool.containsKey(fragmentId)) {
+                openPool(fragmentId);
+            }
+        }
+
+        Rebalancer next = new Rebalancer(this, router, target, chunkSize, pauseMillis);
+        topologyLock.writeLock().lock();
+        try {
+            rebalancer = next;
+        } finally {
+            topologyLock.writeLock().unlock();
+        }
+        return startRebalancer(next);
+    }
+
+    /**
+     * Carry on with a rebalance that failed, from the last chunk it completed. Until
+     * then routing follows the partial placement, and no other rebalance can start.
+     */
+    public synchronized CompletableFuture<Rebalancer.Stats> resumeRebalance() {
+        Rebalancer pending = rebalancer;
+        if (pending == null || !pending.isFailed()) {
+            throw new IllegalStateException("No failed rebalance to resume");
+        }
+        return startRebalancer(pending);
+    }
+
+    private CompletableFuture<Rebalancer.Stats> startRebalancer(Rebalancer next) {
+        CompletableFuture<Rebalancer.Stats> future = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                next.run();
+                future.complete(next.getStats());
+            } catch (Exception e) {
+                // Keys up to the cursor already live on the target, so keep routing through
+                // it; resumeRebalance() carries on from there
+                System.out.println("Rebalance failed: " + next.getStats());
+                e.printStackTrace();
+                future.completeExceptionally(e);
+            }
+        }, "fragment-rebalancer");
+        thread.setDaemon(true);
+        thread.start();
+
+        rebalanceFuture = future;
+        return future;
+    }
+
+    /**
+     * Progress of the running (or last) rebalance, or null if none was started.
+     */
+    public Rebalancer.Stats getRebalanceStats() {
+        Rebalancer running = rebalancer;
+        if (running != null) {
+            return running.getStats();
+        }
+        CompletableFuture<Rebalancer.Stats> last = rebalanceFuture;
+        return last != null && last.isDone() && !last.isCompletedExceptionally() ? last.join() : null;
+    }
+
+    /**
+     * Fragment that currently owns the student.
+     */
+    public int getFragmentId(String studentId) {
+        topologyLock.readLock().lock();
+        try {
+            return route(studentId);
+        } finally {
+            topologyLock.readLock().unlock();
+        }
+    }
+
+    Router getRouter() {
+        return router;
+    }
+
+    /**
+     * Fragments the current router places students on.
+     */
+    public List<Integer> getFragmentIds() {
+        return router.getFragmentIds();
+    }
+
+    /**
+     * Count a failed call against its operation and, when known, its fragment.
+     */
+    private void recordError(Command.Type operation, int fragmentId) {
+        metrics.recordError(operation);
+        if (fragmentId >= 0) {
+            metrics.forFragment(fragmentId).recordError();
+        }
+    }
+
+    /**
+     * Fan-out task that charges its failures to the fragment it ran against.
+     */
+    private <T> ScatterGather.FragmentTask<T> tracked(ScatterGather.FragmentTask<T> task) {
+        return fragmentId -> {
+            try {
+                return task.run(fragmentId);
+            } catch (Exception e) {
+                metrics.forFragment(fragmentId).recordError();
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * route() for a call made on behalf of the student, counted by the load monitor.
+     */
+    private int routeOp(String studentId) {
+        LoadMonitor monitor = loadMonitor;
+        if (monitor != null) {
+            monitor.record(studentId);
+        }
+        return route(studentId);
+    }
+
+    /**
+     * Current owner of a student, honouring an in-progress rebalance.
+     */
+    private int route(String studentId) {
+        Rebalancer running = rebalancer;
+        return running != null ? running.route(studentId) : router.getFragmentId(studentId);
+    }
+
+    void lockTopology() {
+        topologyLock.writeLock().lock();
+    }
+
+    void unlockTopology() {
+        topologyLock.writeLock().unlock();
+    }
+
+    <T> List<T> gather(Collection<Integer> fragmentIds, ScatterGather.FragmentTask<T> task) throws Exception {
+        return scatterGather.gather(fragmentIds, tracked(task));
+    }
+
+    PooledConnection borrow(int fragmentId) throws SQLException {
+        return primaryPool(fragmentId).borrow();
+    }
+
+    private FragmentStore store(int fragmentId) throws SQLException {
+        FragmentStore store = stores.get(fragmentId);
+        if (store == null) {
+            throw new SQLException("No connection pool for frag_" + fragmentId);
+        }
+        return store;
+    }
+
+    /**
+     * Fragment store of the fragment, e.g. to inspect an embedded one.
+     */
+    public FragmentStore getStore(int fragmentId) {
+        return stores.get(fragmentId);
+    }
+
+    private void requireDatabase(String feature) {
+        if (embedded) {
+            throw new IllegalStateException(feature + " needs database fragments, not embedded ones");
+        }
+    }
+
+    private FragmentConnectionPool primaryPool(int fragmentId) throws SQLException {
+        FragmentConnectionPool pool = connectionPool.get(fragmentId);
+        if (pool == null) {
+            throw new SQLException("No connection pool for frag_" + fragmentId);
+        }
+        return pool;
+    }
+
+    /**
+     * Switch to the rebalance target. Called by the rebalancer under the write lock.
+     */
+    void finishRebalance(Rebalancer done) {
+        router = done.getTarget();
+        numFragments = router.getFragmentIds().size();
+        rebalancer = null;
+
+        // Fragments the new router no longer uses hold no rows
+        for (Integer fragmentId : new ArrayList<>(connectionPool.keySet())) {
+            if (!router.getFragmentIds().contains(fragmentId)) {
+                stores.remove(fragmentId);
+                connectionPool.remove(fragmentId).close();
+                ReplicaSet replicas = replicaSets.remove(fragmentId);
+                if (replicas != null) {
+                    replicas.close();
                 }
+                System.out.println("Closed frag_" + fragmentId);
             }
-            System.out.println("All connections closed successfully");
+        }
+    }
+
+    public void closeConnections() {
+        try {
+            flushPendingWrites();
         } catch (SQLException e) {
-            System.out.println("Error closing connections");
+            System.out.println("Error flushing pending writes");
             e.printStackTrace();
         }
+
+        fragmentExecutor.shutdown();
+        maintenanceExecutor.shutdown();
+        metrics.unregisterMBeans();
+
+        // Close every fragment store, and with it the connections of its pool
+        for (FragmentStore store : stores.values()) {
+            store.close();
+        }
+        for (ReplicaSet replicas : replicaSets.values()) {
+            replicas.close();
+        }
+        TwoPhaseCommit coordinator = twoPhaseCommit;
+        if (coordinator != null) {
+            coordinator.close();
+        }
+        WriteJournal journal = writeJournal;
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        System.out.println("All connections closed successfully");
     }
 }
@@ -0,0 +1,403 @@
+package fragment;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Bounded pool of JDBC connections to a single fragment.
+ * Safe to use from many threads: borrow() hands out a connection exclusively
+ * until it is released, and waits up to the borrow timeout when all are busy.
+ *
+ * Every borrow is also an observation of the fragment's health for its circuit
+ * breaker: failing to connect, timing out on borrow, returning a connection the
+ * driver closed after an I/O error, or holding it until the statement timeout
+ * count as failures; anything else as success. While the breaker is open, borrow()
+ * fails immediately.
+ */
+public class FragmentConnectionPool {
+
+    private final int fragmentId;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final PoolConfig config;
+
+    // LIFO so the most recently used (and most likely alive) connection is reused first
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+    private final AtomicInteger openCount = new AtomicInteger();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    // Statistics
+    private final long createdAtNanos = System.nanoTime();
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong invalidatedCount = new AtomicLong();
+    private final AtomicLong writeReleases = new AtomicLong();
+    private volatile FragmentMetrics metrics;
+    private final CircuitBreaker breaker;
+
+    public FragmentConnectionPool(int fragmentId, String url, String user, String password, PoolConfig config) {
+        this.fragmentId = fragmentId;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.config = config;
+        this.permits = new Semaphore(config.getMaxSize(), true);
+        this.breaker = new CircuitBreaker(config.getFailureThreshold(), config.getBreakerOpenMillis(),
+                config.getBreakerMaxOpenMillis());
+    }
+
+    /**
+     * Open the minimum number of connections up front.
+     */
+    public void start() throws SQLException {
+        for (int i = 0; i < config.getMinSize(); i++) {
+            idle.offerFirst(new PooledConnection(this, openConnection(), config.getStatementCacheSize()));
+        }
+    }
+
+    /**
+     * Borrow a connection, waiting up to the configured timeout.
+     * The caller must call {@link PooledConnection#release()} when done.
+     */
+    public PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Pool for frag_" + fragmentId + " is closed");
+        }
+        if (!breaker.tryAcquire()) {
+            // Nothing was sent to the fragment, so report it like a refused connection
+            throw new SQLException("frag_" + fragmentId + " unavailable, retrying in "
+                    + breaker.getRetryInMillis() + "ms (last failure: " + breaker.getLastFailure() + ")", "57P03");
+        }
+
+        long waitStart = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(config.getBorrowTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                timeoutCount.incrementAndGet();
+                breaker.onFailure("borrow timeout");
+                throw new SQLException("Timed out after " + config.getBorrowTimeoutMillis()
+                        + "ms waiting for a connection to frag_" + fragmentId);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            breaker.onAbandoned();
+            throw new SQLException("Interrupted waiting for a connection to frag_" + fragmentId, e);
+        }
+        recordWait(System.nanoTime() - waitStart);
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (isUsable(pooled)) {
+                    break;
+                }
+                discard(pooled);
+                invalidatedCount.incrementAndGet();
+            }
+            if (pooled == null) {
+                pooled = new PooledConnection(this, openConnection(), config.getStatementCacheSize());
+            }
+
+            pooled.markBorrowed();
+            activeCount.incrementAndGet();
+            borrowCount.incrementAndGet();
+            return pooled;
+
+        } catch (SQLException | RuntimeException e) {
+            breaker.onFailure(e.getMessage());
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Return a connection to the pool. Closed and broken connections are dropped.
+     */
+    void release(PooledConnection pooled) {
+        if (!pooled.isReadOnly()) {
+            writeReleases.incrementAndGet();
+        }
+        activeCount.decrementAndGet();
+        long heldNanos = System.nanoTime() - pooled.getBorrowedAtNanos();
+        busyNanos.addAndGet(heldNanos);
+        FragmentMetrics m = metrics;
+        if (m != null) {
+            m.recordHold(heldNanos);
+        }
+
+        boolean reusable;
+        try {
+            reusable = !closed && !pooled.isBroken() && !pooled.connection().isClosed();
+        } catch (SQLException e) {
+            reusable = false;
+        }
+
+        // A closed connection was aborted by the driver after an I/O error; a call that
+        // lasted the whole statement timeout was most likely cancelled by it
+        long statementTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getStatementTimeoutMillis());
+        if (!reusable && !closed) {
+            breaker.onFailure("connection lost");
+        } else if (statementTimeoutNanos > 0 && heldNanos >= statementTimeoutNanos) {
+            breaker.onFailure("statement timeout");
+        } else {
+            breaker.onSuccess();
+        }
+
+        if (reusable) {
+            pooled.markReturned();
+            idle.offerFirst(pooled);
+        } else {
+            discard(pooled);
+        }
+        permits.release();
+    }
+
+    /**
+     * Close idle connections that have been unused for longer than the idle timeout,
+     * never dropping below the minimum size.
+     */
+    public void evictIdle() {
+        long now = System.nanoTime();
+        long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getIdleTimeoutMillis());
+
+        // Oldest idle connections sit at the tail of the deque
+        Iterator<PooledConnection> it = idle.descendingIterator();
+        while (it.hasNext() && openCount.get() > config.getMinSize()) {
+            PooledConnection pooled = it.next();
+            if (now - pooled.getReturnedAtNanos() < idleTimeoutNanos) {
+                break;
+            }
+            if (idle.remove(pooled)) {
+                discard(pooled);
+                evictedCount.incrementAndGet();
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+
+    public int getFragmentId() {
+        return fragmentId;
+    }
+
+    /**
+     * Also record wait and hold times into the client's histograms.
+     */
+    void setMetrics(FragmentMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Borrows returned so far that were not marked read-only, i.e. that may have
+     * written. Counted on release, so a finished write is always included.
+     */
+    public long getWriteReleases() {
+        return writeReleases.get();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    public Stats getStats() {
+        return new Stats(this);
+    }
+
+    private boolean isUsable(PooledConnection pooled) {
+        try {
+            if (pooled.connection().isClosed()) {
+                return false;
+            }
+            // Skip the validation round-trip for connections that were just in use
+            long idleNanos = System.nanoTime() - pooled.getReturnedAtNanos();
+            if (idleNanos < TimeUnit.MILLISECONDS.toNanos(config.getValidationIntervalMillis())) {
+                return true;
+            }
+            return pooled.connection().isValid(1);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private Connection openConnection() throws SQLException {
+        Properties props = new Properties();
+        props.setProperty("user", user);
+        props.setProperty("password", password);
+        // Cached statements are reused, so make them server-side prepared from the first execution
+        props.setProperty("prepareThreshold", "1");
+        // Let the driver turn batched INSERTs into multi-row INSERT statements
+        props.setProperty("reWriteBatchedInserts", "true");
+        if (config.getConnectTimeoutMillis() > 0) {
+            props.setProperty("connectTimeout", String.valueOf(toSeconds(config.getConnectTimeoutMillis())));
+        }
+        if (config.getStatementTimeoutMillis() > 0) {
+            // The server cancels slow statements; the socket timeout catches a fragment
+            // that stopped answering altogether
+            props.setProperty("options", "-c statement_timeout=" + config.getStatementTimeoutMillis());
+            props.setProperty("socketTimeout", String.valueOf(toSeconds(2 * config.getStatementTimeoutMillis())));
+        }
+
+        Connection conn = DriverManager.getConnection(url, props);
+        openCount.incrementAndGet();
+        return conn;
+    }
+
+    private static long toSeconds(long millis) {
+        return Math.max(1, (millis + 999) / 1000);
+    }
+
+    private void discard(PooledConnection pooled) {
+        openCount.decrementAndGet();
+        // Server-side statements die with the connection; never reuse them on a new one
+        pooled.statementCache().invalidate();
+        try {
+            pooled.connection().close();
+        } catch (SQLException e) {
+            // Connection is being thrown away anyway
+        }
+    }
+
+    private void recordWait(long waitNanos) {
+        totalWaitNanos.addAndGet(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        FragmentMetrics m = metrics;
+        if (m != null) {
+            m.recordWait(waitNanos);
+        }
+    }
+
+    /**
+     * Point-in-time view of pool usage for one fragment.
+     */
+    public static class Stats {
+        private final int fragmentId;
+        private final int open;
+        private final int active;
+        private final int idle;
+        private final int waiting;
+        private final int maxSize;
+        private final long borrows;
+        private final long timeouts;
+        private final long evicted;
+        private final long invalidated;
+        private final double avgWaitMicros;
+        private final double maxWaitMicros;
+        private final long busyNanos;
+        private final double utilization;
+        private final CircuitBreaker.State health;
+        private final long breakerOpens;
+        private final long breakerRejected;
+
+        private Stats(FragmentConnectionPool pool) {
+            this.fragmentId = pool.fragmentId;
+            this.open = pool.openCount.get();
+            this.active = pool.activeCount.get();
+            this.idle = pool.idle.size();
+            this.waiting = pool.permits.getQueueLength();
+            this.maxSize = pool.config.getMaxSize();
+            this.borrows = pool.borrowCount.get();
+            this.timeouts = pool.timeoutCount.get();
+            this.evicted = pool.evictedCount.get();
+            this.invalidated = pool.invalidatedCount.get();
+            this.avgWaitMicros = borrows == 0 ? 0 : pool.totalWaitNanos.get() / 1_000.0 / borrows;
+            this.maxWaitMicros = pool.maxWaitNanos.get() / 1_000.0;
+
+            // Fraction of the pool's capacity spent holding a borrowed connection
+            long uptime = Math.max(1, System.nanoTime() - pool.createdAtNanos);
+            this.busyNanos = pool.busyNanos.get();
+            this.utilization = (double) busyNanos / ((double) uptime * maxSize);
+            this.health = pool.breaker.getState();
+            this.breakerOpens = pool.breaker.getOpens();
+            this.breakerRejected = pool.breaker.getRejected();
+        }
+
+        public int getFragmentId() {
+            return fragmentId;
+        }
+
+        public int getOpen() {
+            return open;
+        }
+
+        public int getActive() {
+            return active;
+        }
+
+        public int getIdle() {
+            return idle;
+        }
+
+        /**
+         * Callers currently queued for a connection (an estimate, as the count changes
+         * while it is taken).
+         */
+        public int getWaiting() {
+            return waiting;
+        }
+
+        public long getBorrows() {
+            return borrows;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        public double getAvgWaitMicros() {
+            return avgWaitMicros;
+        }
+
+        public double getMaxWaitMicros() {
+            return maxWaitMicros;
+        }
+
+        /**
+         * Total time connections have been held since the pool started.
+         */
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        public double getUtilization() {
+            return utilization;
+        }
+
+        public CircuitBreaker.State getHealth() {
+            return health;
+        }
+
+        public long getBreakerOpens() {
+            return breakerOpens;
+        }
+
+        public long getBreakerRejected() {
+            return breakerRejected;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "frag_%d: open=%d active=%d idle=%d waiting=%d max=%d borrows=%d timeouts=%d evicted=%d invalidated=%d "
+                            + "avgWait=%.1fus maxWait=%.1fus utilization=%.1f%% health=%s opens=%d rejected=%d",
+                    fragmentId, open, active, idle, waiting, maxSize, borrows, timeouts, evicted, invalidated,
+                    avgWaitMicros, maxWaitMicros, utilization * 100, health, breakerOpens, breakerRejected);
+        }
+    }
+}
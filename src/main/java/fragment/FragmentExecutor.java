@@ -0,0 +1,59 @@
+package fragment;
+import java.util.concurrent.*;
+
+/**
+ * Runs per-fragment calls for scatter-gather queries.
+ *
+ * Each call blocks in JDBC for a network round trip, so what matters is how cheaply
+ * a blocked call can be parked. The platform implementation keeps a pool of OS
+ * threads sized to the connections that can be in use at once; the virtual-thread
+ * implementation starts one virtual thread per call, which costs a few hundred bytes
+ * and no OS thread while it waits, so fan-out over many fragments is bounded only
+ * by the connection pools.
+ */
+public interface FragmentExecutor {
+
+    <T> Future<T> submit(Callable<T> task);
+
+    /**
+     * Make room for at least this many calls in flight. A no-op where threads are unbounded.
+     */
+    void ensureParallelism(int parallelism);
+
+    void shutdown();
+
+    /**
+     * Fixed pool of daemon platform threads that grows through ensureParallelism.
+     */
+    static FragmentExecutor platform(int threads) {
+        return new PlatformFragmentExecutor(threads);
+    }
+
+    /**
+     * One virtual thread per call. Requires Java 21 at run time.
+     *
+     * @throws UnsupportedOperationException on older runtimes
+     */
+    static FragmentExecutor virtual() {
+        return new VirtualThreadFragmentExecutor();
+    }
+
+    static boolean virtualThreadsAvailable() {
+        return VirtualThreadFragmentExecutor.FACTORY != null;
+    }
+
+    /**
+     * "virtual" or "platform"; virtual falls back to platform on runtimes without it.
+     */
+    static FragmentExecutor named(String name, int platformThreads) {
+        if ("virtual".equals(name)) {
+            if (virtualThreadsAvailable()) {
+                return virtual();
+            }
+            System.out.println("Virtual threads need Java 21+, using platform threads");
+        } else if (name != null && !"platform".equals(name)) {
+            throw new IllegalArgumentException("Unknown fragment executor: " + name);
+        }
+        return platform(platformThreads);
+    }
+}
@@ -0,0 +1,106 @@
+package fragment;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Per-fragment figures recorded by its connection pool: how long callers waited for
+ * a connection and how long they held it, which is the time spent talking to frag_N.
+ */
+public class FragmentMetrics implements FragmentMetricsMXBean {
+
+    private final int fragmentId;
+    private final ClientMetrics owner;
+    private final LatencyHistogram hold = new LatencyHistogram();
+    private final LatencyHistogram wait = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+
+    FragmentMetrics(int fragmentId, ClientMetrics owner) {
+        this.fragmentId = fragmentId;
+        this.owner = owner;
+    }
+
+    void recordWait(long nanos) {
+        wait.record(nanos);
+    }
+
+    void recordHold(long nanos) {
+        hold.record(nanos);
+    }
+
+    void recordError() {
+        errors.incrementAndGet();
+    }
+
+    public LatencyHistogram getHoldLatency() {
+        return hold;
+    }
+
+    public LatencyHistogram getWaitLatency() {
+        return wait;
+    }
+
+    void reset() {
+        hold.reset();
+        wait.reset();
+        errors.set(0);
+    }
+
+    @Override
+    public int getFragmentId() {
+        return fragmentId;
+    }
+
+    @Override
+    public long getBorrows() {
+        return hold.getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public double getBorrowsPerSecond() {
+        return hold.getCount() / Math.max(1e-9, owner.getUptimeSeconds());
+    }
+
+    @Override
+    public double getHoldP50Micros() {
+        return hold.getValueAtPercentile(50) / 1_000.0;
+    }
+
+    @Override
+    public double getHoldP99Micros() {
+        return hold.getValueAtPercentile(99) / 1_000.0;
+    }
+
+    @Override
+    public double getHoldP999Micros() {
+        return hold.getValueAtPercentile(99.9) / 1_000.0;
+    }
+
+    @Override
+    public double getHoldMaxMicros() {
+        return hold.getMaxNanos() / 1_000.0;
+    }
+
+    @Override
+    public double getWaitP50Micros() {
+        return wait.getValueAtPercentile(50) / 1_000.0;
+    }
+
+    @Override
+    public double getWaitP99Micros() {
+        return wait.getValueAtPercentile(99) / 1_000.0;
+    }
+
+    @Override
+    public double getWaitP999Micros() {
+        return wait.getValueAtPercentile(99.9) / 1_000.0;
+    }
+
+    @Override
+    public double getWaitMaxMicros() {
+        return wait.getMaxNanos() / 1_000.0;
+    }
+}
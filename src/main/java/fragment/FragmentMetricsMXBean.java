@@ -0,0 +1,20 @@
+package fragment;
+
+/**
+ * JMX view of one fragment: how long connections were waited for and held,
+ * and how many calls against it failed. Latencies are in microseconds.
+ */
+public interface FragmentMetricsMXBean {
+    int getFragmentId();
+    long getBorrows();
+    long getErrors();
+    double getBorrowsPerSecond();
+    double getHoldP50Micros();
+    double getHoldP99Micros();
+    double getHoldP999Micros();
+    double getHoldMaxMicros();
+    double getWaitP50Micros();
+    double getWaitP99Micros();
+    double getWaitP999Micros();
+    double getWaitMaxMicros();
+}
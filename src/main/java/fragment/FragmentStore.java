@@ -0,0 +1,78 @@
+package fragment;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Storage of one fragment: its Student and Grade rows and a copy of Course.
+ *
+ * FragmentClient runs every per-fragment read and write of the workload through the
+ * fragment's store. Two implementations exist: JdbcFragmentStore runs the SQL on a
+ * fragment database through a connection pool, and EmbeddedFragmentStore keeps the
+ * tables in process memory. The two give the same answers, so either can check the
+ * other. Failures are SQLExceptions carrying the PostgreSQL SQLState, e.g. 23505 for
+ * a duplicate key.
+ */
+public interface FragmentStore {
+
+    void insertStudent(String studentId, String name, int age, String email) throws SQLException;
+
+    void insertGrade(String studentId, String courseId, int score) throws SQLException;
+
+    /**
+     * @return number of rows changed, 0 or 1
+     */
+    int updateGrade(String studentId, String courseId, int newScore) throws SQLException;
+
+    /**
+     * updateGrade() that reports the score it replaced, for incremental aggregates.
+     *
+     * @return the previous score, or null if the student has no grade for the course
+     */
+    Integer replaceGrade(String studentId, String courseId, int newScore) throws SQLException;
+
+    /**
+     * @return number of rows removed, 0 or 1
+     */
+    int deleteGrade(String studentId, String courseId) throws SQLException;
+
+    /**
+     * deleteGrade() that reports the score it removed, for incremental aggregates.
+     *
+     * @return the removed score, or null if the student had no grade for the course
+     */
+    Integer removeGrade(String studentId, String courseId) throws SQLException;
+
+    /**
+     * "name,email", or null if the student is not stored here.
+     */
+    String getStudentProfile(String studentId) throws SQLException;
+
+    /**
+     * "name,email" of each of the students stored here; unknown ids are left out.
+     */
+    Map<String, String> getStudentProfiles(Collection<String> studentIds) throws SQLException;
+
+    /**
+     * SUM and COUNT of score per course_id over Grade alone, including courses
+     * missing from Course. The client maps them to departments with its CourseCatalog.
+     */
+    Map<String, long[]> getCourseSums() throws SQLException;
+
+    /**
+     * The students stored here with the most grades, and that count.
+     */
+    Map<String, Integer> getStudentsWithMostCourses() throws SQLException;
+
+    /**
+     * This fragment's copy of Course.
+     */
+    CourseCatalog getCourseCatalog() throws SQLException;
+
+    /**
+     * Remove every student and grade; Course rows are kept.
+     */
+    void clear() throws SQLException;
+
+    void close();
+}
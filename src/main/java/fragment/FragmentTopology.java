@@ -0,0 +1,65 @@
+package fragment;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Where each fragment lives: one primary that takes every write and any number of
+ * read replicas (PostgreSQL hot standbys streaming from that primary).
+ *
+ * Loaded from a properties file:
+ *
+ *   # defaults for every fragment, %d is the fragment id
+ *   primary.pattern=jdbc:postgresql://localhost:5432/frag_%d
+ *   replica.patterns=jdbc:postgresql://localhost:5433/frag_%d
+ *   # per-fragment overrides
+ *   fragment.2.primary=jdbc:postgresql://db2:5432/frag_2
+ *   fragment.2.replicas=jdbc:postgresql://db2-r1:5432/frag_2,jdbc:postgresql://db2-r2:5432/frag_2
+ *
+ * Fragments without a primary entry use the client's connection pattern.
+ */
+public class FragmentTopology {
+
+    private final Properties properties;
+
+    public FragmentTopology(Properties properties) {
+        this.properties = properties;
+    }
+
+    public static FragmentTopology load(String path) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = new FileReader(path)) {
+            properties.load(reader);
+        }
+        return new FragmentTopology(properties);
+    }
+
+    public String getPrimaryUrl(int fragmentId, String defaultPattern) {
+        String url = properties.getProperty("fragment." + fragmentId + ".primary");
+        if (url != null) {
+            return url.trim();
+        }
+        return String.format(properties.getProperty("primary.pattern", defaultPattern).trim(), fragmentId);
+    }
+
+    public List<String> getReplicaUrls(int fragmentId) {
+        String urls = properties.getProperty("fragment." + fragmentId + ".replicas");
+        boolean patterns = urls == null;
+        if (patterns) {
+            urls = properties.getProperty("replica.patterns", "");
+        }
+
+        List<String> result = new ArrayList<>();
+        for (String url : urls.split(",")) {
+            url = url.trim();
+            if (!url.isEmpty()) {
+                result.add(patterns ? String.format(url, fragmentId) : url);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return new TreeMap<>(properties).toString();
+    }
+}
@@ -0,0 +1,138 @@
+package fragment;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * A group of writes applied atomically across fragments.
+ *
+ * Operations are only recorded until commit(). Then they are grouped by the fragment
+ * owning each student, keeping their order within a fragment. A group on a single
+ * fragment is sent as one BEGIN ... COMMIT script, i.e. one local transaction in one
+ * round-trip. Groups spanning fragments use two-phase commit, see
+ * FragmentClient.enableTwoPhaseCommit(). Either way there is a single commit for the
+ * whole group instead of one per row.
+ *
+ * Not thread-safe; use one transaction per thread.
+ */
+public class FragmentTransaction implements AutoCloseable {
+
+    private final FragmentClient client;
+    private final List<Op> ops = new ArrayList<>();
+    private boolean finished;
+
+    FragmentTransaction(FragmentClient client) {
+        this.client = client;
+    }
+
+    public void insertStudent(String studentId, String name, int age, String email) {
+        add(new Op(Command.Type.INSERT_STUDENT, studentId, null, 0, JdbcFragmentStore.INSERT_STUDENT_SQL,
+                studentId, name, age, email));
+    }
+
+    public void insertGrade(String studentId, String courseId, int score) {
+        add(new Op(Command.Type.INSERT_GRADE, studentId, courseId, score, JdbcFragmentStore.INSERT_GRADE_SQL,
+                studentId, courseId, score));
+    }
+
+    public void updateGrade(String studentId, String courseId, int newScore) {
+        add(new Op(Command.Type.UPDATE_GRADE, studentId, courseId, newScore, JdbcFragmentStore.UPDATE_GRADE_SQL,
+                newScore, studentId, courseId));
+    }
+
+    public void deleteStudentFromCourse(String studentId, String courseId) {
+        add(new Op(Command.Type.DELETE_STUDENT_COURSE, studentId, courseId, 0, JdbcFragmentStore.DELETE_GRADE_SQL,
+                studentId, courseId));
+    }
+
+    /**
+     * Apply every recorded operation, or none of them. On failure nothing was
+     * committed, except when two-phase commit already decided to commit: then the
+     * remaining fragments are committed in the background and commit() returns.
+     */
+    public void commit() throws SQLException {
+        checkOpen();
+        finished = true;
+        client.commitTransaction(ops);
+    }
+
+    /**
+     * Drop the recorded operations. Nothing has been sent yet.
+     */
+    public void rollback() {
+        finished = true;
+        ops.clear();
+    }
+
+    @Override
+    public void close() {
+        if (!finished) {
+            rollback();
+        }
+    }
+
+    public int size() {
+        return ops.size();
+    }
+
+    private void add(Op op) {
+        checkOpen();
+        ops.add(op);
+    }
+
+    private void checkOpen() {
+        if (finished) {
+            throw new IllegalStateException("Transaction already finished");
+        }
+    }
+
+    /**
+     * Run the operations as one script "BEGIN; op; op; ...; terminator" in a single
+     * round-trip. When a statement fails the server skips the rest, so the block is
+     * rolled back before the connection goes back to its pool.
+     */
+    static void execute(PooledConnection pooled, List<Op> ops, String terminator) throws SQLException {
+        StringBuilder sql = new StringBuilder("BEGIN");
+        for (Op op : ops) {
+            sql.append(";\n").append(op.sql);
+        }
+        sql.append(";\n").append(terminator);
+
+        try (PreparedStatement pstmt = pooled.connection().prepareStatement(sql.toString())) {
+            int index = 1;
+            for (Op op : ops) {
+                for (Object param : op.params) {
+                    pstmt.setObject(index++, param);
+                }
+            }
+            pstmt.execute();
+        } catch (SQLException e) {
+            try (Statement rollback = pooled.connection().createStatement()) {
+                rollback.execute("ROLLBACK");
+            } catch (SQLException ignored) {
+                // Broken connection; the pool discards it
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * One recorded write.
+     */
+    static class Op {
+        final Command.Type type;
+        final String studentId;
+        final String courseId;
+        final int score;
+        final String sql;
+        final Object[] params;
+
+        Op(Command.Type type, String studentId, String courseId, int score, String sql, Object... params) {
+            this.type = type;
+            this.studentId = studentId;
+            this.courseId = courseId;
+            this.score = score;
+            this.sql = sql;
+            this.params = params;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package fragment;
+import java.util.*;
+
+/**
+ * Space-Saving sketch (Metwally et al., "Efficient Computation of Frequent and Top-k
+ * Elements in Data Streams") of the most frequent keys in a stream.
+ *
+ * At most capacity keys are counted. An unseen key replaces the key with the smallest
+ * count and inherits that count as its error, so a reported count overestimates the
+ * true one by at most its error, and any key seen more than total/capacity times is
+ * guaranteed to be among the counted keys. Counters sit in a min-heap indexed by key,
+ * so offer() costs O(log capacity) and never allocates once the sketch is full.
+ */
+public class HeavyHitters {
+
+    private final int capacity;
+    private final Map<String, Counter> counters;
+    private final Counter[] heap;
+    private int size;
+    private long total;
+
+    public HeavyHitters(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.counters = new HashMap<>(capacity * 2);
+        this.heap = new Counter[capacity];
+    }
+
+    public synchronized void offer(String key) {
+        total++;
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            counter.count++;
+            siftDown(counter.index);
+            return;
+        }
+
+        if (size < capacity) {
+            counter = new Counter();
+            counter.key = key;
+            counter.count = 1;
+            counter.index = size;
+            heap[size++] = counter;
+            counters.put(key, counter);
+            siftUp(counter.index);
+            return;
+        }
+
+        // Take over the least frequent key's counter
+        counter = heap[0];
+        counters.remove(counter.key);
+        counter.error = counter.count;
+        counter.key = key;
+        counter.count++;
+        counters.put(key, counter);
+        siftDown(counter.index);
+    }
+
+    /**
+     * Up to n keys with the highest estimated counts, most frequent first.
+     */
+    public synchronized List<Entry> top(int n) {
+        List<Entry> entries = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            entries.add(new Entry(heap[i].key, heap[i].count, heap[i].error));
+        }
+        entries.sort((a, b) -> Long.compare(b.count, a.count));
+        return entries.subList(0, Math.min(n, entries.size()));
+    }
+
+    /**
+     * Number of keys offered since the last reset.
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    public synchronized void reset() {
+        counters.clear();
+        Arrays.fill(heap, 0, size, null);
+        size = 0;
+        total = 0;
+    }
+
+    private void siftUp(int i) {
+        Counter moving = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heap[parent].count <= moving.count) {
+                break;
+            }
+            heap[i] = heap[parent];
+            heap[i].index = i;
+            i = parent;
+        }
+        heap[i] = moving;
+        moving.index = i;
+    }
+
+    private void siftDown(int i) {
+        Counter moving = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                child++;
+            }
+            if (heap[child].count >= moving.count) {
+                break;
+            }
+            heap[i] = heap[child];
+            heap[i].index = i;
+            i = child;
+        }
+        heap[i] = moving;
+        moving.index = i;
+    }
+
+    private static class Counter {
+        String key;
+        long count;
+        long error;
+        int index;
+    }
+
+    /**
+     * A counted key: its true frequency lies in [count - error, count].
+     */
+    public static class Entry {
+        private final String key;
+        private final long count;
+        private final long error;
+
+        Entry(String key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getError() {
+            return error;
+        }
+
+        public long getGuaranteedCount() {
+            return count - error;
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + count + (error > 0 ? " (error " + error + ")" : "");
+        }
+    }
+}
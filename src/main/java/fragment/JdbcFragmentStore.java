@@ -0,0 +1,236 @@
+package fragment;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * FragmentStore on a fragment database, through a connection pool.
+ *
+ * The client keeps one per primary pool. Reads sent to a replica run through a store
+ * over the replica's pool; a store holds no state besides its pool, so these are
+ * created per read. Reads mark their connection read-only, so they do not count as
+ * writes for read-your-writes.
+ *
+ * The write statements are also used as they are by the write batcher, the write
+ * journal and transactions.
+ */
+public class JdbcFragmentStore implements FragmentStore {
+
+    static final String INSERT_STUDENT_SQL =
+            "INSERT INTO Student (student_id, name, age, email) VALUES (?, ?, ?, ?)";
+    static final String INSERT_GRADE_SQL =
+            "INSERT INTO Grade (student_id, course_id, score) VALUES (?, ?, ?)";
+    static final String UPDATE_GRADE_SQL =
+            "UPDATE Grade SET score = ? WHERE student_id = ? AND course_id = ?";
+    static final String DELETE_GRADE_SQL =
+            "DELETE FROM Grade WHERE student_id = ? AND course_id = ?";
+
+    // Variants that report the replaced score so incremental aggregates can apply the delta
+    private static final String UPDATE_GRADE_RETURNING_SQL =
+            "UPDATE Grade g SET score = ? FROM Grade prev " +
+            "WHERE g.student_id = prev.student_id AND g.course_id = prev.course_id " +
+            "AND g.student_id = ? AND g.course_id = ? RETURNING prev.score";
+    private static final String DELETE_GRADE_RETURNING_SQL =
+            "DELETE FROM Grade WHERE student_id = ? AND course_id = ? RETURNING score";
+
+    private static final String PROFILE_SQL = "SELECT name, email FROM Student WHERE student_id = ?";
+    private static final String PROFILES_BY_IDS_SQL =
+            "SELECT student_id, name, email FROM Student WHERE student_id = ANY(?)";
+
+    // Grade alone, per course: the departments are joined on the client
+    private static final String COURSE_SUMS_SQL =
+            "SELECT course_id, SUM(score) AS total, COUNT(score) AS cnt FROM Grade GROUP BY course_id";
+    private static final String MOST_COURSES_SQL =
+            "WITH counts AS (" +
+            "SELECT student_id, COUNT(*) AS cnt FROM Grade GROUP BY student_id) " +
+            "SELECT student_id, cnt FROM counts " +
+            "WHERE cnt = (SELECT MAX(cnt) FROM counts)";
+
+    private final FragmentConnectionPool pool;
+
+    public JdbcFragmentStore(FragmentConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Connect to the fragment database, creating the schema if it has none.
+     */
+    public static JdbcFragmentStore open(int fragmentId, String url, String user, String password, PoolConfig config)
+            throws SQLException {
+        FragmentConnectionPool pool = new FragmentConnectionPool(fragmentId, url, user, password, config);
+        try {
+            pool.start();
+            PooledConnection pooled = pool.borrow();
+            try {
+                SchemaManager.ensureSchema(pooled.connection());
+            } finally {
+                pooled.release();
+            }
+        } catch (SQLException | RuntimeException e) {
+            pool.close();
+            throw e;
+        }
+        return new JdbcFragmentStore(pool);
+    }
+
+    public FragmentConnectionPool getPool() {
+        return pool;
+    }
+
+    @Override
+    public void insertStudent(String studentId, String name, int age, String email) throws SQLException {
+        update(INSERT_STUDENT_SQL, studentId, name, age, email);
+    }
+
+    @Override
+    public void insertGrade(String studentId, String courseId, int score) throws SQLException {
+        update(INSERT_GRADE_SQL, studentId, courseId, score);
+    }
+
+    @Override
+    public int updateGrade(String studentId, String courseId, int newScore) throws SQLException {
+        return update(UPDATE_GRADE_SQL, newScore, studentId, courseId);
+    }
+
+    @Override
+    public Integer replaceGrade(String studentId, String courseId, int newScore) throws SQLException {
+        return updateReturning(UPDATE_GRADE_RETURNING_SQL, newScore, studentId, courseId);
+    }
+
+    @Override
+    public int deleteGrade(String studentId, String courseId) throws SQLException {
+        return update(DELETE_GRADE_SQL, studentId, courseId);
+    }
+
+    @Override
+    public Integer removeGrade(String studentId, String courseId) throws SQLException {
+        return updateReturning(DELETE_GRADE_RETURNING_SQL, studentId, courseId);
+    }
+
+    @Override
+    public String getStudentProfile(String studentId) throws SQLException {
+        PooledConnection pooled = pool.borrow();
+        try {
+            PreparedStatement pstmt = pooled.prepare(PROFILE_SQL);
+            pstmt.setString(1, studentId);
+            ResultSet rs = pstmt.executeQuery();
+            String result = rs.next() ? rs.getString("name") + "," + rs.getString("email") : null;
+            rs.close();
+            pooled.markReadOnly();
+            return result;
+        } finally {
+            pooled.release();
+        }
+    }
+
+    @Override
+    public Map<String, String> getStudentProfiles(Collection<String> studentIds) throws SQLException {
+        PooledConnection pooled = pool.borrow();
+        try {
+            PreparedStatement pstmt = pooled.prepare(PROFILES_BY_IDS_SQL);
+            pstmt.setArray(1, pooled.connection().createArrayOf("varchar", studentIds.toArray()));
+            ResultSet rs = pstmt.executeQuery();
+            Map<String, String> profiles = new HashMap<>();
+            while (rs.next()) {
+                profiles.put(rs.getString("student_id"), rs.getString("name") + "," + rs.getString("email"));
+            }
+            rs.close();
+            pooled.markReadOnly();
+            return profiles;
+        } finally {
+            pooled.release();
+        }
+    }
+
+    @Override
+    public Map<String, long[]> getCourseSums() throws SQLException {
+        PooledConnection pooled = pool.borrow();
+        try {
+            Map<String, long[]> sums = new HashMap<>();
+            ResultSet rs = pooled.prepare(COURSE_SUMS_SQL).executeQuery();
+            while (rs.next()) {
+                sums.put(rs.getString("course_id"), new long[] { rs.getLong("total"), rs.getLong("cnt") });
+            }
+            rs.close();
+            pooled.markReadOnly();
+            return sums;
+        } finally {
+            pooled.release();
+        }
+    }
+
+    @Override
+    public Map<String, Integer> getStudentsWithMostCourses() throws SQLException {
+        PooledConnection pooled = pool.borrow();
+        try {
+            Map<String, Integer> top = new HashMap<>();
+            ResultSet rs = pooled.prepare(MOST_COURSES_SQL).executeQuery();
+            while (rs.next()) {
+                top.put(rs.getString("student_id"), rs.getInt("cnt"));
+            }
+            rs.close();
+            pooled.markReadOnly();
+            return top;
+        } finally {
+            pooled.release();
+        }
+    }
+
+    @Override
+    public CourseCatalog getCourseCatalog() throws SQLException {
+        PooledConnection pooled = pool.borrow();
+        try {
+            CourseCatalog catalog = CourseCatalog.load(pooled);
+            pooled.markReadOnly();
+            return catalog;
+        } finally {
+            pooled.release();
+        }
+    }
+
+    @Override
+    public void clear() throws SQLException {
+        PooledConnection pooled = pool.borrow();
+        try (Statement stmt = pooled.connection().createStatement()) {
+            stmt.executeUpdate("TRUNCATE Grade, Student");
+        } finally {
+            pooled.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    private int update(String sql, Object... params) throws SQLException {
+        PooledConnection pooled = pool.borrow();
+        try {
+            return bind(pooled.prepare(sql), params).executeUpdate();
+        } finally {
+            pooled.release();
+        }
+    }
+
+    private Integer updateReturning(String sql, Object... params) throws SQLException {
+        PooledConnection pooled = pool.borrow();
+        try {
+            ResultSet rs = bind(pooled.prepare(sql), params).executeQuery();
+            Integer previous = rs.next() ? rs.getInt(1) : null;
+            rs.close();
+            return previous;
+        } finally {
+            pooled.release();
+        }
+    }
+
+    private static PreparedStatement bind(PreparedStatement pstmt, Object... params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] instanceof Integer) {
+                pstmt.setInt(i + 1, (Integer) params[i]);
+            } else {
+                pstmt.setString(i + 1, (String) params[i]);
+            }
+        }
+        return pstmt;
+    }
+}
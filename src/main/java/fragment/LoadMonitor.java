@@ -0,0 +1,259 @@
+package fragment;
+import java.util.*;
+
+/**
+ * Watches how evenly the fragments are loaded and which students cause the load.
+ *
+ * Every window the monitor compares each fragment's connection borrows per second,
+ * mean time a connection was held and current borrow queue with the other
+ * fragments. Every routed student id is fed to a Space-Saving sketch, so the
+ * hottest students of the window are known as well, with their fragment.
+ *
+ * When a fragment runs more than imbalanceThreshold times the mean rate, the window
+ * is reported. With mitigation on, students on such a fragment whose share of all
+ * routed calls reaches hotKeyShare are handed to the client, which then serves their
+ * profiles from a pinned in-memory copy instead of the fragment. They stay pinned
+ * for as long as they remain hot, since caching them is what cools the fragment.
+ */
+public class LoadMonitor {
+
+    public static final int DEFAULT_SKETCH_CAPACITY = 256;
+    public static final double DEFAULT_HOT_KEY_SHARE = 0.01;
+    public static final int MAX_HOT_KEYS = 64;
+
+    // Windows with fewer borrows than this say nothing about balance
+    private static final long MIN_WINDOW_BORROWS = 100;
+
+    private final FragmentClient client;
+    private final double imbalanceThreshold;
+    private final double hotKeyShare;
+    private final boolean mitigate;
+    private final HeavyHitters sketch;
+
+    private Map<Integer, FragmentConnectionPool.Stats> previous = new HashMap<>();
+    private long previousNanos = System.nanoTime();
+    private Set<String> promoted = Collections.emptySet();
+    private volatile Report lastReport;
+
+    LoadMonitor(FragmentClient client, double imbalanceThreshold, double hotKeyShare, boolean mitigate) {
+        this.client = client;
+        this.imbalanceThreshold = imbalanceThreshold;
+        this.hotKeyShare = hotKeyShare;
+        this.mitigate = mitigate;
+        this.sketch = new HeavyHitters(DEFAULT_SKETCH_CAPACITY);
+    }
+
+    void record(String studentId) {
+        sketch.offer(studentId);
+    }
+
+    /**
+     * Close the current window: compute its report, report imbalance and adjust the
+     * pinned keys. Called by the client's maintenance thread.
+     */
+    synchronized Report tick() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - previousNanos) / 1e9);
+        Map<Integer, FragmentConnectionPool.Stats> current = client.getPoolStats();
+
+        // Per-fragment load in this window
+        List<FragmentLoad> loads = new ArrayList<>();
+        long windowBorrows = 0;
+        for (FragmentConnectionPool.Stats stats : current.values()) {
+            FragmentConnectionPool.Stats before = previous.get(stats.getFragmentId());
+            long borrows = stats.getBorrows() - (before != null ? before.getBorrows() : 0);
+            long busyNanos = stats.getBusyNanos() - (before != null ? before.getBusyNanos() : 0);
+            loads.add(new FragmentLoad(stats.getFragmentId(), borrows / seconds,
+                    borrows == 0 ? 0 : busyNanos / 1_000.0 / borrows, stats.getWaiting()));
+            windowBorrows += borrows;
+        }
+
+        double mean = loads.isEmpty() ? 0 : windowBorrows / seconds / loads.size();
+        double imbalance = 0;
+        Set<Integer> overloaded = new TreeSet<>();
+        for (FragmentLoad load : loads) {
+            if (mean > 0) {
+                imbalance = Math.max(imbalance, load.opsPerSecond / mean);
+            }
+            if (windowBorrows >= MIN_WINDOW_BORROWS && load.opsPerSecond > mean * imbalanceThreshold) {
+                overloaded.add(load.fragmentId);
+            }
+        }
+
+        // Hottest students of the window and where they live
+        long routed = sketch.getTotal();
+        List<HotKey> hotKeys = new ArrayList<>();
+        for (HeavyHitters.Entry entry : sketch.top(MAX_HOT_KEYS)) {
+            // Ranked by estimated count, so a key further down can still have the
+            // larger guaranteed count: skip, do not stop
+            if (routed == 0 || entry.getGuaranteedCount() < hotKeyShare * routed) {
+                continue;
+            }
+            hotKeys.add(new HotKey(entry, client.getFragmentId(entry.getKey())));
+        }
+        sketch.reset();
+
+        if (mitigate) {
+            // Pin hot keys of overloaded fragments; keep earlier pins while they stay hot
+            Set<String> pinned = new HashSet<>();
+            for (HotKey hot : hotKeys) {
+                if (overloaded.contains(hot.fragmentId) || promoted.contains(hot.entry.getKey())) {
+                    pinned.add(hot.entry.getKey());
+                }
+            }
+            if (!pinned.equals(promoted)) {
+                promoted = Collections.unmodifiableSet(pinned);
+                client.setHotKeys(promoted);
+            }
+        }
+
+        Report report = new Report(seconds, loads, imbalance, overloaded, hotKeys, promoted);
+        if (!overloaded.isEmpty()) {
+            System.out.println(report);
+        }
+
+        previous = current;
+        previousNanos = now;
+        lastReport = report;
+        return report;
+    }
+
+    /**
+     * Report of the last completed window, or null before the first one.
+     */
+    public Report getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Keys currently served from the pinned copy.
+     */
+    public synchronized Set<String> getPinnedKeys() {
+        return promoted;
+    }
+
+    /**
+     * One fragment's load over a window.
+     */
+    public static class FragmentLoad {
+        private final int fragmentId;
+        private final double opsPerSecond;
+        private final double meanHoldMicros;
+        private final int waiting;
+
+        FragmentLoad(int fragmentId, double opsPerSecond, double meanHoldMicros, int waiting) {
+            this.fragmentId = fragmentId;
+            this.opsPerSecond = opsPerSecond;
+            this.meanHoldMicros = meanHoldMicros;
+            this.waiting = waiting;
+        }
+
+        public int getFragmentId() {
+            return fragmentId;
+        }
+
+        public double getOpsPerSecond() {
+            return opsPerSecond;
+        }
+
+        public double getMeanHoldMicros() {
+            return meanHoldMicros;
+        }
+
+        public int getWaiting() {
+            return waiting;
+        }
+    }
+
+    /**
+     * A student flagged by the sketch, with the fragment that owns it.
+     */
+    public static class HotKey {
+        private final HeavyHitters.Entry entry;
+        private final int fragmentId;
+
+        HotKey(HeavyHitters.Entry entry, int fragmentId) {
+            this.entry = entry;
+            this.fragmentId = fragmentId;
+        }
+
+        public String getStudentId() {
+            return entry.getKey();
+        }
+
+        public long getCount() {
+            return entry.getCount();
+        }
+
+        public int getFragmentId() {
+            return fragmentId;
+        }
+
+        @Override
+        public String toString() {
+            return entry + "@frag_" + fragmentId;
+        }
+    }
+
+    /**
+     * Load of every fragment over one window, the imbalance ratio (busiest fragment's
+     * rate over the mean rate) and the hot keys.
+     */
+    public static class Report {
+        private final double windowSeconds;
+        private final List<FragmentLoad> fragments;
+        private final double imbalance;
+        private final Set<Integer> overloaded;
+        private final List<HotKey> hotKeys;
+        private final Set<String> pinnedKeys;
+
+        Report(double windowSeconds, List<FragmentLoad> fragments, double imbalance, Set<Integer> overloaded,
+               List<HotKey> hotKeys, Set<String> pinnedKeys) {
+            this.windowSeconds = windowSeconds;
+            this.fragments = fragments;
+            this.imbalance = imbalance;
+            this.overloaded = overloaded;
+            this.hotKeys = hotKeys;
+            this.pinnedKeys = pinnedKeys;
+        }
+
+        public double getWindowSeconds() {
+            return windowSeconds;
+        }
+
+        public List<FragmentLoad> getFragments() {
+            return fragments;
+        }
+
+        public double getImbalance() {
+            return imbalance;
+        }
+
+        public Set<Integer> getOverloadedFragments() {
+            return overloaded;
+        }
+
+        public List<HotKey> getHotKeys() {
+            return hotKeys;
+        }
+
+        public Set<String> getPinnedKeys() {
+            return pinnedKeys;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "Load over %.1fs: imbalance=%.2fx overloaded=%s pinned=%d%n",
+                    windowSeconds, imbalance, overloaded, pinnedKeys.size()));
+            for (FragmentLoad load : fragments) {
+                sb.append(String.format(Locale.US, "  frag_%d: %.1f ops/s meanHold=%.1fus waiting=%d%n",
+                        load.fragmentId, load.opsPerSecond, load.meanHoldMicros, load.waiting));
+            }
+            if (!hotKeys.isEmpty()) {
+                sb.append("  hot keys: ").append(hotKeys).append(System.lineSeparator());
+            }
+            return sb.toString();
+        }
+    }
+}
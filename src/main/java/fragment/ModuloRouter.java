@@ -0,0 +1,35 @@
+package fragment;
+import java.util.*;
+
+/**
+ * Original placement: hashCode modulo the number of fragments.
+ * Changing the fragment count remaps almost every key.
+ */
+public class ModuloRouter implements Router {
+    private final int numFragments;
+    private final List<Integer> fragmentIds;
+
+    public ModuloRouter(int numFragments) {
+        if (numFragments < 1) {
+            throw new IllegalArgumentException("Need at least one fragment: " + numFragments);
+        }
+        this.numFragments = numFragments;
+
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < numFragments; i++) {
+            ids.add(i);
+        }
+        this.fragmentIds = Collections.unmodifiableList(ids);
+    }
+
+    @Override
+    public int getFragmentId(String key) {
+        // Same placement as Math.abs(hash) % n, but without the Integer.MIN_VALUE overflow
+        return Math.abs(key.hashCode() % numFragments);
+    }
+
+    @Override
+    public List<Integer> getFragmentIds() {
+        return fragmentIds;
+    }
+}
@@ -0,0 +1,80 @@
+package fragment;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Latency and error counts of one client operation, e.g. getStudentProfile.
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+
+    private final Command.Type operation;
+    private final ClientMetrics owner;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+
+    OperationMetrics(Command.Type operation, ClientMetrics owner) {
+        this.operation = operation;
+        this.owner = owner;
+    }
+
+    void record(long nanos) {
+        latency.record(nanos);
+    }
+
+    void recordError() {
+        errors.incrementAndGet();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    void reset() {
+        latency.reset();
+        errors.set(0);
+    }
+
+    @Override
+    public String getOperation() {
+        return operation.name();
+    }
+
+    @Override
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public double getThroughputPerSecond() {
+        return latency.getCount() / Math.max(1e-9, owner.getUptimeSeconds());
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return latency.getMeanNanos() / 1_000.0;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return latency.getValueAtPercentile(50) / 1_000.0;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return latency.getValueAtPercentile(99) / 1_000.0;
+    }
+
+    @Override
+    public double getP999Micros() {
+        return latency.getValueAtPercentile(99.9) / 1_000.0;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return latency.getMaxNanos() / 1_000.0;
+    }
+}
@@ -0,0 +1,16 @@
+package fragment;
+
+/**
+ * JMX view of one client operation. Latencies are in microseconds.
+ */
+public interface OperationMetricsMXBean {
+    String getOperation();
+    long getCount();
+    long getErrors();
+    double getThroughputPerSecond();
+    double getMeanMicros();
+    double getP50Micros();
+    double getP99Micros();
+    double getP999Micros();
+    double getMaxMicros();
+}
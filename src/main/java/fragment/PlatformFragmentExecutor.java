@@ -0,0 +1,43 @@
+package fragment;
+import java.util.concurrent.*;
+
+/**
+ * Fixed pool of daemon platform threads; idle threads time out after a minute.
+ */
+class PlatformFragmentExecutor implements FragmentExecutor {
+
+    private final ThreadPoolExecutor executor;
+
+    PlatformFragmentExecutor(int threads) {
+        this.executor = new ThreadPoolExecutor(threads, threads,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "fragment-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    @Override
+    public synchronized void ensureParallelism(int parallelism) {
+        if (parallelism > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(parallelism);
+            executor.setCorePoolSize(parallelism);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "platform(" + executor.getMaximumPoolSize() + " threads)";
+    }
+}
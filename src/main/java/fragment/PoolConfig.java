@@ -0,0 +1,133 @@
+package fragment;
+
+/**
+ * Sizing and timing knobs for a per-fragment connection pool.
+ */
+public class PoolConfig {
+
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long validationIntervalMillis;
+    private final long idleTimeoutMillis;
+    private final int statementCacheSize;
+
+    // Fault handling; see withTimeouts() and withCircuitBreaker()
+    private long statementTimeoutMillis = 0;
+    private long connectTimeoutMillis = 10_000;
+    private int failureThreshold = 5;
+    private long breakerOpenMillis = 1_000;
+    private long breakerMaxOpenMillis = 30_000;
+
+    /**
+     * @param minSize                  connections kept open even when idle
+     * @param maxSize                  upper bound on open connections per fragment
+     * @param borrowTimeoutMillis      how long borrow() waits for a free connection
+     * @param validationIntervalMillis connections idle longer than this are validated on borrow
+     * @param idleTimeoutMillis        idle connections above minSize are evicted after this
+     */
+    public PoolConfig(int minSize, int maxSize, long borrowTimeoutMillis,
+                      long validationIntervalMillis, long idleTimeoutMillis) {
+        this(minSize, maxSize, borrowTimeoutMillis, validationIntervalMillis, idleTimeoutMillis,
+                StatementCache.DEFAULT_SIZE);
+    }
+
+    /**
+     * @param statementCacheSize       prepared statements kept per connection (LRU)
+     */
+    public PoolConfig(int minSize, int maxSize, long borrowTimeoutMillis,
+                      long validationIntervalMillis, long idleTimeoutMillis, int statementCacheSize) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * Copy with per-statement and connect timeouts; 0 disables a timeout.
+     * A statement running longer than statementTimeoutMillis is cancelled by the
+     * fragment and the call counts as a failure for the circuit breaker.
+     */
+    public PoolConfig withTimeouts(long statementTimeoutMillis, long connectTimeoutMillis) {
+        PoolConfig copy = copy();
+        copy.statementTimeoutMillis = statementTimeoutMillis;
+        copy.connectTimeoutMillis = connectTimeoutMillis;
+        return copy;
+    }
+
+    /**
+     * Copy whose circuit breakers open after failureThreshold consecutive failures,
+     * for openMillis at first and doubling up to maxOpenMillis while trials fail.
+     */
+    public PoolConfig withCircuitBreaker(int failureThreshold, long openMillis, long maxOpenMillis) {
+        PoolConfig copy = copy();
+        copy.failureThreshold = failureThreshold;
+        copy.breakerOpenMillis = openMillis;
+        copy.breakerMaxOpenMillis = maxOpenMillis;
+        return copy;
+    }
+
+    private PoolConfig copy() {
+        PoolConfig copy = new PoolConfig(minSize, maxSize, borrowTimeoutMillis, validationIntervalMillis,
+                idleTimeoutMillis, statementCacheSize);
+        copy.statementTimeoutMillis = statementTimeoutMillis;
+        copy.connectTimeoutMillis = connectTimeoutMillis;
+        copy.failureThreshold = failureThreshold;
+        copy.breakerOpenMillis = breakerOpenMillis;
+        copy.breakerMaxOpenMillis = breakerMaxOpenMillis;
+        return copy;
+    }
+
+    public static PoolConfig defaults() {
+        return new PoolConfig(1, 8, 5_000, 500, 60_000);
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getBorrowTimeoutMillis() {
+        return borrowTimeoutMillis;
+    }
+
+    public long getValidationIntervalMillis() {
+        return validationIntervalMillis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public long getStatementTimeoutMillis() {
+        return statementTimeoutMillis;
+    }
+
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getBreakerOpenMillis() {
+        return breakerOpenMillis;
+    }
+
+    public long getBreakerMaxOpenMillis() {
+        return breakerMaxOpenMillis;
+    }
+}
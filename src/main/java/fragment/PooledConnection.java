@@ -0,0 +1,86 @@
+package fragment;
+import java.sql.*;
+
+/**
+ * A connection checked out of a {@link FragmentConnectionPool}.
+ */
+public class PooledConnection {
+
+    private final FragmentConnectionPool pool;
+    private final Connection connection;
+    private final StatementCache statements;
+    private long borrowedAtNanos;
+    private long returnedAtNanos;
+    private boolean readOnly;
+    private boolean broken;
+
+    PooledConnection(FragmentConnectionPool pool, Connection connection, int statementCacheSize) {
+        this.pool = pool;
+        this.connection = connection;
+        this.statements = new StatementCache(connection, statementCacheSize);
+        this.returnedAtNanos = System.nanoTime();
+    }
+
+    public Connection connection() {
+        return connection;
+    }
+
+    /**
+     * Prepared statement from this connection's cache. Do not close it.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        return statements.prepare(sql);
+    }
+
+    StatementCache statementCache() {
+        return statements;
+    }
+
+    /**
+     * Give the connection back to its pool. Must be called exactly once per borrow.
+     */
+    public void release() {
+        pool.release(this);
+    }
+
+    /**
+     * Declare that this borrow only read, so it does not count as a possible write
+     * for read-your-writes tracking. Reset on every borrow.
+     */
+    public void markReadOnly() {
+        readOnly = true;
+    }
+
+    boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Declare that the connection failed, so release() closes it instead of
+     * returning it to the pool.
+     */
+    public void markBroken() {
+        broken = true;
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    void markBorrowed() {
+        borrowedAtNanos = System.nanoTime();
+        readOnly = false;
+    }
+
+    void markReturned() {
+        returnedAtNanos = System.nanoTime();
+    }
+
+    long getBorrowedAtNanos() {
+        return borrowedAtNanos;
+    }
+
+    long getReturnedAtNanos() {
+        return returnedAtNanos;
+    }
+}
@@ -0,0 +1,86 @@
+package fragment;
+import java.util.*;
+
+/**
+ * Bounded LRU cache of "name,email" profiles by student_id.
+ *
+ * Only profiles that exist are cached, so a student inserted later is never hidden
+ * behind a cached miss. No operation changes or deletes a Student row after it is
+ * inserted, which keeps cached entries valid until they are evicted.
+ */
+public class ProfileCache {
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, String> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ProfileCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (size() > ProfileCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Cached profile, or null on a miss.
+     */
+    public synchronized String get(String studentId) {
+        String profile = entries.get(studentId);
+        if (profile != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return profile;
+    }
+
+    public synchronized void put(String studentId, String profile) {
+        if (profile != null) {
+            entries.put(studentId, profile);
+        }
+    }
+
+    public synchronized void invalidate(String studentId) {
+        entries.remove(studentId);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return String.format(Locale.US, "size=%d/%d hits=%d misses=%d evictions=%d hitRate=%.1f%%",
+                entries.size(), maxEntries, hits, misses, evictions,
+                lookups == 0 ? 0 : 100.0 * hits / lookups);
+    }
+}
@@ -0,0 +1,13 @@
+package fragment;
+
+/**
+ * Where reads may be served when fragments have replicas.
+ */
+public enum ReadConsistency {
+    /** Every read goes to the primary. */
+    PRIMARY,
+    /** Any healthy replica, however far behind. */
+    EVENTUAL,
+    /** A replica that has replayed every write this client finished, else the primary. */
+    READ_YOUR_WRITES
+}
@@ -0,0 +1,362 @@
+package fragment;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Moves Student and Grade rows to their new fragment while the client keeps serving.
+ *
+ * The key space is walked in student_id order in small chunks. Every chunk is moved
+ * under the client's topology write lock, which only blocks other operations for the
+ * duration of that one chunk; between chunks the workload runs at full speed. A cursor
+ * records how far the walk has got: keys up to and including it are already at their
+ * new home and are routed with the target router, keys above it still live where the
+ * old router put them. When the walk finishes the client switches routers atomically.
+ */
+public class Rebalancer {
+
+    private static final String FIRST_SCAN_SQL =
+            "SELECT student_id FROM Student ORDER BY student_id COLLATE \"C\" LIMIT ?";
+    private static final String SCAN_SQL =
+            "SELECT student_id FROM Student WHERE student_id COLLATE \"C\" > ? " +
+            "ORDER BY student_id COLLATE \"C\" LIMIT ?";
+    private static final String SELECT_STUDENTS_SQL =
+            "SELECT student_id, name, age, email FROM Student WHERE student_id = ANY(?)";
+    private static final String SELECT_GRADES_SQL =
+            "SELECT student_id, course_id, score FROM Grade WHERE student_id = ANY(?)";
+    private static final String UPSERT_STUDENT_SQL =
+            "INSERT INTO Student (student_id, name, age, email) VALUES (?, ?, ?, ?) " +
+            "ON CONFLICT (student_id) DO UPDATE SET name = EXCLUDED.name, age = EXCLUDED.age, email = EXCLUDED.email";
+    private static final String UPSERT_GRADE_SQL =
+            "INSERT INTO Grade (student_id, course_id, score) VALUES (?, ?, ?) " +
+            "ON CONFLICT (student_id, course_id) DO UPDATE SET score = EXCLUDED.score";
+    private static final String DELETE_GRADES_SQL = "DELETE FROM Grade WHERE student_id = ANY(?)";
+    private static final String DELETE_STUDENTS_SQL = "DELETE FROM Student WHERE student_id = ANY(?)";
+
+    private final FragmentClient client;
+    private final Router from;
+    private final Router to;
+    private final int chunkSize;
+    private final long pauseMillis;
+    private final Stats stats = new Stats();
+
+    // Largest key already migrated; null until the first chunk is done
+    private volatile String cursor;
+    // Keys past the cursor that the current chunk already moved. Only non-empty after a
+    // chunk failed half way; guarded by the topology lock like the chunk itself.
+    private final Set<String> movedInChunk = new HashSet<>();
+
+    Rebalancer(FragmentClient client, Router from, Router to, int chunkSize, long pauseMillis) {
+        this.client = client;
+        this.from = from;
+        this.to = to;
+        this.chunkSize = chunkSize;
+        this.pauseMillis = pauseMillis;
+    }
+
+    /**
+     * Where a key lives right now. Called under the topology read lock.
+     */
+    int route(String key) {
+        String c = cursor;
+        if ((c != null && key.compareTo(c) <= 0) || movedInChunk.contains(key)) {
+            return to.getFragmentId(key);
+        }
+        return from.getFragmentId(key);
+    }
+
+    /**
+     * Position the walk as if every key up to and including cursor had been moved.
+     * For tests; run() advances the cursor itself.
+     */
+    void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    Router getTarget() {
+        return to;
+    }
+
+    Stats getStats() {
+        return stats;
+    }
+
+    /**
+     * True once run() has thrown. The cursor is kept, so run() can be called again to
+     * carry on from the last completed chunk.
+     */
+    boolean isFailed() {
+        return stats.failed;
+    }
+
+    /**
+     * Walk the whole key space, or what is left of it after a failed run. Runs on a
+     * background thread.
+     */
+    void run() throws Exception {
+        if (stats.startNanos == 0) {
+            stats.startNanos = System.nanoTime();
+        }
+        stats.failed = false;
+        boolean done = false;
+
+        while (!done) {
+            long chunkStart;
+            client.lockTopology();
+            try {
+                chunkStart = System.nanoTime();
+                done = moveNextChunk();
+                if (done) {
+                    client.finishRebalance(this);
+                }
+            } catch (Exception e) {
+                // A chunk that failed half way is redone on resume: the keys it already
+                // moved are routed through movedInChunk meanwhile and are no longer
+                // found on their source, and the copies are upserts
+                stats.failed = true;
+                throw e;
+            } finally {
+                client.unlockTopology();
+            }
+            stats.recordPause(System.nanoTime() - chunkStart);
+
+            // Give the workload the floor between chunks
+            if (!done && pauseMillis > 0) {
+                try {
+                    Thread.sleep(pauseMillis);
+                } catch (InterruptedException e) {
+                    stats.failed = true;
+                    throw e;
+                }
+            }
+        }
+        stats.endNanos = System.nanoTime();
+    }
+
+    /**
+     * Move every key in (cursor, bound] whose owner changes. Returns true when the walk is complete.
+     */
+    private boolean moveNextChunk() throws Exception {
+        // Writes queued against the old placement must land before their rows move
+        client.flushPendingWrites();
+
+        // Scan the next page on every source fragment. The chunk can only extend up to
+        // the smallest last key of a full page, otherwise keys on that fragment are skipped.
+        Map<Integer, List<String>> pages = new HashMap<>();
+        String bound = null;
+        for (int fragmentId : from.getFragmentIds()) {
+            List<String> page = scanPage(fragmentId, cursor);
+            pages.put(fragmentId, page);
+            if (page.size() == chunkSize) {
+                String last = page.get(page.size() - 1);
+                if (bound == null || last.compareTo(bound) < 0) {
+                    bound = last;
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, List<String>> entry : pages.entrySet()) {
+            int source = entry.getKey();
+            Map<Integer, List<String>> byTarget = new HashMap<>();
+            for (String key : entry.getValue()) {
+                if (bound != null && key.compareTo(bound) > 0) {
+                    break;
+                }
+                int target = to.getFragmentId(key);
+                if (target != source) {
+                    byTarget.computeIfAbsent(target, t -> new ArrayList<>()).add(key);
+                }
+            }
+            for (Map.Entry<Integer, List<String>> move : byTarget.entrySet()) {
+                moveKeys(source, move.getKey(), move.getValue());
+                movedInChunk.addAll(move.getValue());
+            }
+        }
+
+        stats.chunks++;
+        if (bound == null) {
+            return true;
+        }
+        // Next chunk starts just after bound. The cursor stays exclusive: PostgreSQL text
+        // cannot hold the NUL that would make "the key right after bound".
+        cursor = bound;
+        movedInChunk.clear();
+        return false;
+    }
+
+    private List<String> scanPage(int fragmentId, String after) throws SQLException {
+        PooledConnection pooled = client.borrow(fragmentId);
+        try {
+            PreparedStatement pstmt;
+            if (after == null) {
+                pstmt = pooled.prepare(FIRST_SCAN_SQL);
+                pstmt.setInt(1, chunkSize);
+            } else {
+                pstmt = pooled.prepare(SCAN_SQL);
+                pstmt.setString(1, after);
+                pstmt.setInt(2, chunkSize);
+            }
+            ResultSet rs = pstmt.executeQuery();
+
+            List<String> page = new ArrayList<>();
+            while (rs.next()) {
+                page.add(rs.getString("student_id"));
+            }
+            rs.close();
+            return page;
+        } finally {
+            pooled.release();
+        }
+    }
+
+    /**
+     * Copy the keys' rows to the target in one transaction, then delete them from the source.
+     * If the delete fails the copies are removed again so no row is ever counted twice.
+     */
+    private void moveKeys(int source, int target, List<String> keys) throws SQLException {
+        PooledConnection src = client.borrow(source);
+        PooledConnection dst = null;
+        try {
+            dst = client.borrow(target);
+            Array srcIds = src.connection().createArrayOf("varchar", keys.toArray());
+
+            // Read the rows from the source
+            PreparedStatement selectStudents = src.prepare(SELECT_STUDENTS_SQL);
+            selectStudents.setArray(1, srcIds);
+            ResultSet rs = selectStudents.executeQuery();
+            PreparedStatement upsertStudent = dst.prepare(UPSERT_STUDENT_SQL);
+            int students = 0;
+            while (rs.next()) {
+                upsertStudent.setString(1, rs.getString("student_id"));
+                upsertStudent.setString(2, rs.getString("name"));
+                upsertStudent.setInt(3, rs.getInt("age"));
+                upsertStudent.setString(4, rs.getString("email"));
+                upsertStudent.addBatch();
+                students++;
+            }
+            rs.close();
+
+            PreparedStatement selectGrades = src.prepare(SELECT_GRADES_SQL);
+            selectGrades.setArray(1, srcIds);
+            rs = selectGrades.executeQuery();
+            PreparedStatement upsertGrade = dst.prepare(UPSERT_GRADE_SQL);
+            int grades = 0;
+            while (rs.next()) {
+                upsertGrade.setString(1, rs.getString("student_id"));
+                upsertGrade.setString(2, rs.getString("course_id"));
+                upsertGrade.setInt(3, rs.getInt("score"));
+                upsertGrade.addBatch();
+                grades++;
+            }
+            rs.close();
+
+            // Write them to the target (students first for the foreign key)
+            runInTransaction(dst.connection(), () -> {
+                upsertStudent.executeBatch();
+                upsertGrade.executeBatch();
+            });
+
+            // Remove them from the source (grades first for the foreign key)
+            try {
+                deleteKeys(src, srcIds);
+            } catch (SQLException e) {
+                deleteKeys(dst, dst.connection().createArrayOf("varchar", keys.toArray()));
+                throw e;
+            }
+
+            stats.keysMoved += keys.size();
+            stats.rowsMoved += students + grades;
+        } finally {
+            if (dst != null) dst.release();
+            src.release();
+        }
+    }
+
+    private static void deleteKeys(PooledConnection pooled, Array ids) throws SQLException {
+        runInTransaction(pooled.connection(), () -> {
+            PreparedStatement deleteGrades = pooled.prepare(DELETE_GRADES_SQL);
+            deleteGrades.setArray(1, ids);
+            deleteGrades.executeUpdate();
+
+            PreparedStatement deleteStudents = pooled.prepare(DELETE_STUDENTS_SQL);
+            deleteStudents.setArray(1, ids);
+            deleteStudents.executeUpdate();
+        });
+    }
+
+    private interface SqlWork {
+        void run() throws SQLException;
+    }
+
+    private static void runInTransaction(Connection conn, SqlWork work) throws SQLException {
+        conn.setAutoCommit(false);
+        try {
+            work.run();
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Progress and cost of a migration. The pause figures are how long client
+     * operations were blocked per chunk, i.e. the bound on added latency.
+     */
+    public static class Stats {
+        private volatile long startNanos;
+        private volatile long endNanos;
+        private volatile long chunks;
+        private volatile long keysMoved;
+        private volatile long rowsMoved;
+        private volatile long totalPauseNanos;
+        private volatile long maxPauseNanos;
+        private volatile boolean failed;
+
+        private void recordPause(long nanos) {
+            totalPauseNanos += nanos;
+            maxPauseNanos = Math.max(maxPauseNanos, nanos);
+        }
+
+        public boolean isDone() {
+            return endNanos != 0;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+
+        public long getKeysMoved() {
+            return keysMoved;
+        }
+
+        public long getRowsMoved() {
+            return rowsMoved;
+        }
+
+        public double getMaxPauseMillis() {
+            return maxPauseNanos / 1_000_000.0;
+        }
+
+        /**
+         * Fraction of wall time during which client operations were blocked.
+         */
+        public double getBlockedFraction() {
+            long end = endNanos != 0 ? endNanos : System.nanoTime();
+            long elapsed = Math.max(1, end - startNanos);
+            return (double) totalPauseNanos / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            long end = endNanos != 0 ? endNanos : System.nanoTime();
+            return String.format(Locale.US,
+                    "%s chunks=%d keys=%d rows=%d elapsed=%.1fms maxPause=%.1fms avgPause=%.1fms blocked=%.1f%%",
+                    isDone() ? "done" : failed ? "failed" : "running", chunks, keysMoved, rowsMoved,
+                    (end - startNanos) / 1_000_000.0, getMaxPauseMillis(),
+                    chunks == 0 ? 0 : totalPauseNanos / 1_000_000.0 / chunks,
+                    getBlockedFraction() * 100);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package fragment;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A fragment's primary pool and its replica pools, and the choice of where a read
+ * goes.
+ *
+ * Reads rotate over the replicas whose circuit breaker is not open. For
+ * read-your-writes the client keeps a session token per fragment: the primary's WAL
+ * insert position, captured the first time a read follows writes this client
+ * finished (counted by the primary pool's write releases). A replica qualifies once
+ * its replay position has reached the token. Replay positions are cached and only
+ * one replica is asked again per read, so a lagging fragment sends its reads to the
+ * primary rather than making them wait.
+ */
+class ReplicaSet {
+
+    private static final String WRITE_LSN_SQL = "SELECT pg_current_wal_insert_lsn()::text";
+    private static final String REPLAY_LSN_SQL = "SELECT pg_last_wal_replay_lsn()::text";
+
+    private final FragmentConnectionPool primary;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+
+    // Session token: WAL position covering the first tokenWrites write releases
+    private volatile long tokenWrites = -1;
+    private volatile long tokenLsn;
+
+    private final AtomicLong replicaReads = new AtomicLong();
+    private final AtomicLong primaryReads = new AtomicLong();
+    private final AtomicLong lsnQueries = new AtomicLong();
+
+    ReplicaSet(FragmentConnectionPool primary, List<FragmentConnectionPool> replicaPools) {
+        this.primary = primary;
+        for (FragmentConnectionPool pool : replicaPools) {
+            replicas.add(new Replica(pool));
+        }
+    }
+
+    FragmentConnectionPool getPrimary() {
+        return primary;
+    }
+
+    List<FragmentConnectionPool> getReplicaPools() {
+        List<FragmentConnectionPool> pools = new ArrayList<>();
+        for (Replica replica : replicas) {
+            pools.add(replica.pool);
+        }
+        return pools;
+    }
+
+    /**
+     * Pool to read from under the given consistency.
+     */
+    FragmentConnectionPool choose(ReadConsistency consistency) throws SQLException {
+        if (consistency == ReadConsistency.PRIMARY || replicas.isEmpty()) {
+            primaryReads.incrementAndGet();
+            return primary;
+        }
+        long required = consistency == ReadConsistency.READ_YOUR_WRITES ? sessionLsn() : 0;
+
+        int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+        Replica firstHealthy = null;
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (replica.pool.getCircuitBreaker().getState() == CircuitBreaker.State.OPEN) {
+                continue;
+            }
+            if (replica.replayLsn >= required) {
+                replicaReads.incrementAndGet();
+                return replica.pool;
+            }
+            if (firstHealthy == null) {
+                firstHealthy = replica;
+            }
+        }
+
+        // None known to be caught up: ask one of them again
+        if (firstHealthy != null && firstHealthy.refreshReplayLsn() >= required) {
+            replicaReads.incrementAndGet();
+            return firstHealthy.pool;
+        }
+        primaryReads.incrementAndGet();
+        return primary;
+    }
+
+    /**
+     * WAL position that every write this client finished on the fragment is at or
+     * below. Only queried again after further writes.
+     */
+    private long sessionLsn() throws SQLException {
+        long writes = primary.getWriteReleases();
+        if (writes == tokenWrites) {
+            return tokenLsn;
+        }
+        long lsn = queryLsn(primary, WRITE_LSN_SQL);
+        synchronized (this) {
+            if (writes > tokenWrites) {
+                tokenWrites = writes;
+            }
+            tokenLsn = Math.max(tokenLsn, lsn);
+            return tokenLsn;
+        }
+    }
+
+    private long queryLsn(FragmentConnectionPool pool, String sql) throws SQLException {
+        lsnQueries.incrementAndGet();
+        PooledConnection pooled = pool.borrow();
+        try {
+            ResultSet rs = pooled.prepare(sql).executeQuery();
+            long lsn = rs.next() ? parseLsn(rs.getString(1)) : 0;
+            rs.close();
+            pooled.markReadOnly();
+            return lsn;
+        } finally {
+            pooled.release();
+        }
+    }
+
+    /**
+     * pg_lsn text form "16/B374D848" as a comparable number; null (not a standby) is 0.
+     */
+    static long parseLsn(String lsn) {
+        if (lsn == null) {
+            return 0;
+        }
+        int slash = lsn.indexOf('/');
+        return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+    }
+
+    void close() {
+        for (Replica replica : replicas) {
+            replica.pool.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "frag_%d: replicas=%d replicaReads=%d primaryReads=%d lsnQueries=%d",
+                primary.getFragmentId(), replicas.size(), replicaReads.get(), primaryReads.get(), lsnQueries.get());
+    }
+
+    private class Replica {
+        final FragmentConnectionPool pool;
+        volatile long replayLsn;
+
+        Replica(FragmentConnectionPool pool) {
+            this.pool = pool;
+        }
+
+        long refreshReplayLsn() {
+            try {
+                replayLsn = Math.max(replayLsn, queryLsn(pool, REPLAY_LSN_SQL));
+            } catch (SQLException e) {
+                // Unreachable: its breaker keeps later reads away
+            }
+            return replayLsn;
+        }
+    }
+}
@@ -1,12 +1,16 @@
 package fragment;
-public class Router {
-    private final int numFragments;
+import java.util.*;
 
-    public Router(int numFragments) {
-        this.numFragments = numFragments;
-    }
+/**
+ * Placement strategy: decides which fragment owns a key.
+ * All rows of one student must map to the same fragment.
+ */
+public interface Router {
 
-    public int getFragmentId(String key) {
-        return Math.abs(key.hashCode()) % numFragments;
-    }
+    int getFragmentId(String key);
+
+    /**
+     * The fragments this router places keys on, in ascending order.
+     */
+    List<Integer> getFragmentIds();
 }
@@ -0,0 +1,95 @@
+package fragment;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Prints how evenly each routing strategy spreads the workload's student ids,
+ * and how many ids move when one fragment is added.
+ *
+ * Usage: java -cp target/classes fragment.RouterSkewReport [workload-file] [numFragments...]
+ * Without a file the workload.txt on the classpath is used.
+ */
+public class RouterSkewReport {
+
+    public static void main(String[] args) throws IOException {
+        String path = null;
+        List<Integer> fragmentCounts = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.matches("\\d+")) {
+                fragmentCounts.add(Integer.parseInt(arg));
+            } else {
+                path = arg;
+            }
+        }
+        if (fragmentCounts.isEmpty()) {
+            fragmentCounts.addAll(Arrays.asList(3, 8, 16));
+        }
+
+        Set<String> studentIds = readStudentIds(path);
+        System.out.println("Distinct student ids: " + studentIds.size());
+
+        for (int n : fragmentCounts) {
+            System.out.println();
+            System.out.println("== " + n + " fragments ==");
+            report("modulo", new ModuloRouter(n), new ModuloRouter(n + 1), studentIds);
+
+            ConsistentHashRouter ring = new ConsistentHashRouter(n);
+            report("consistent", ring, ring.withFragment(n), studentIds);
+        }
+    }
+
+    static void report(String name, Router router, Router grown, Collection<String> keys) {
+        Map<Integer, Integer> counts = new TreeMap<>();
+        for (int fragmentId : router.getFragmentIds()) {
+            counts.put(fragmentId, 0);
+        }
+
+        int moved = 0;
+        for (String key : keys) {
+            int fragmentId = router.getFragmentId(key);
+            counts.merge(fragmentId, 1, Integer::sum);
+            if (grown.getFragmentId(key) != fragmentId) {
+                moved++;
+            }
+        }
+
+        double mean = (double) keys.size() / counts.size();
+        double variance = 0;
+        int max = 0;
+        for (int count : counts.values()) {
+            variance += (count - mean) * (count - mean);
+            max = Math.max(max, count);
+        }
+        double stddev = Math.sqrt(variance / counts.size());
+
+        System.out.printf(Locale.US, "%-10s per-fragment=%s max/mean=%.3f cv=%.3f moved-on-add=%.1f%% (ideal %.1f%%)%n",
+                name, counts.values(),
+                mean == 0 ? 0 : max / mean,
+                mean == 0 ? 0 : stddev / mean,
+                keys.isEmpty() ? 0 : 100.0 * moved / keys.size(),
+                100.0 / (counts.size() + 1));
+    }
+
+    private static Set<String> readStudentIds(String path) throws IOException {
+        InputStream in = path != null
+                ? new FileInputStream(path)
+                : RouterSkewReport.class.getClassLoader().getResourceAsStream("workload.txt");
+        if (in == null) {
+            throw new FileNotFoundException("workload.txt not found on classpath");
+        }
+
+        Set<String> ids = new LinkedHashSet<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split(",");
+                // Every command except READ_SCORE / READ_ALL carries a student id
+                if (parts.length > 1) {
+                    ids.add(parts[1]);
+                }
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,52 @@
+package fragment;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs one task per fragment in parallel and gathers the partial results.
+ * Latency tracks the slowest fragment rather than the sum over all fragments.
+ */
+public class ScatterGather {
+
+    /**
+     * Work executed against a single fragment.
+     */
+    public interface FragmentTask<T> {
+        T run(int fragmentId) throws Exception;
+    }
+
+    private final FragmentExecutor executor;
+
+    public ScatterGather(FragmentExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Submit the task to every fragment and wait for all of them.
+     * Results are returned in the same order as fragmentIds.
+     */
+    public <T> List<T> gather(Collection<Integer> fragmentIds, FragmentTask<T> task) throws Exception {
+        List<Future<T>> futures = new ArrayList<>(fragmentIds.size());
+        for (int fragmentId : fragmentIds) {
+            futures.add(executor.submit(() -> task.run(fragmentId)));
+        }
+
+        List<T> results = new ArrayList<>(futures.size());
+        Exception failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                // Keep draining so no fragment call is left running unobserved
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+}
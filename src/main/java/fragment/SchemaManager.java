@@ -0,0 +1,129 @@
+package fragment;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Creates the Student/Grade/Course schema from init-scripts/scripts.sql, which the
+ * build copies onto the classpath, so new fragments need no manual psql step.
+ */
+public final class SchemaManager {
+
+    static final String SCHEMA_RESOURCE = "scripts.sql";
+    private static final String[] TABLES = { "student", "grade", "course" };
+
+    private SchemaManager() {
+    }
+
+    /**
+     * Apply the schema if none of its tables exist yet.
+     *
+     * @return true if the schema was created
+     * @throws SQLException if only some of the tables exist
+     */
+    public static boolean ensureSchema(Connection conn) throws SQLException {
+        int present = 0;
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT to_regclass(?) IS NOT NULL")) {
+            for (String table : TABLES) {
+                pstmt.setString(1, table);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    rs.next();
+                    if (rs.getBoolean(1)) {
+                        present++;
+                    }
+                }
+            }
+        }
+        if (present == TABLES.length) {
+            return false;
+        }
+        if (present > 0) {
+            throw new SQLException("Partial schema in " + conn.getCatalog() + ": "
+                    + present + " of " + TABLES.length + " tables exist");
+        }
+        applySchema(conn);
+        return true;
+    }
+
+    /**
+     * Drop every table and create the schema again with only the Course rows.
+     */
+    public static void recreateSchema(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS Grade, Student, Course");
+        }
+        applySchema(conn);
+    }
+
+    private static void applySchema(Connection conn) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            for (String sql : statements()) {
+                stmt.execute(sql);
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * The Course rows the schema script inserts, as {course_id, course_name, department}.
+     * Used by stores that do not run SQL.
+     */
+    static List<String[]> courseRows() throws SQLException {
+        Pattern row = Pattern.compile("\\(\\s*'([^']*)'\\s*,\\s*'([^']*)'\\s*,\\s*'([^']*)'\\s*\\)");
+        List<String[]> rows = new ArrayList<>();
+        for (String sql : statements()) {
+            if (!sql.toUpperCase(Locale.ROOT).startsWith("INSERT INTO COURSE")) {
+                continue;
+            }
+            Matcher matcher = row.matcher(sql);
+            while (matcher.find()) {
+                rows.add(new String[] { matcher.group(1), matcher.group(2), matcher.group(3) });
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * The schema script split into statements, with "--" comments removed.
+     */
+    static List<String> statements() throws SQLException {
+        InputStream in = SchemaManager.class.getClassLoader().getResourceAsStream(SCHEMA_RESOURCE);
+        if (in == null) {
+            throw new SQLException(SCHEMA_RESOURCE + " not found on classpath");
+        }
+
+        List<String> statements = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf("--");
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                current.append(line).append('\n');
+                // The script has no semicolons inside literals, so a trailing one ends a statement
+                if (line.trim().endsWith(";")) {
+                    String sql = current.toString().trim();
+                    statements.add(sql.substring(0, sql.length() - 1));
+                    current.setLength(0);
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException("Could not read " + SCHEMA_RESOURCE, e);
+        }
+        if (!current.toString().trim().isEmpty()) {
+            statements.add(current.toString().trim());
+        }
+        return statements;
+    }
+}
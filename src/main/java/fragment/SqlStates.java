@@ -0,0 +1,31 @@
+package fragment;
+import java.sql.SQLException;
+
+/**
+ * Classification of PostgreSQL SQLStates for deciding how a failed write is retried.
+ */
+public final class SqlStates {
+
+    private SqlStates() {
+    }
+
+    /**
+     * The server rejected the statement's data (class 22 data exception, class 23
+     * integrity violation). The statement changed nothing and the connection is fine,
+     * so the other writes of its batch or transaction can still be applied.
+     */
+    public static boolean isDataError(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("22") || state.startsWith("23"));
+    }
+
+    /**
+     * The connection failed or the server dropped the session (class 08 connection
+     * exception, class 57 operator intervention, or no SQLState from the driver). The
+     * statement may not have run, and the connection must not be reused.
+     */
+    public static boolean isConnectionError(SQLException e) {
+        String state = e.getSQLState();
+        return state == null || state.startsWith("08") || state.startsWith("57");
+    }
+}
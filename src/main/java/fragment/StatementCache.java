@@ -0,0 +1,87 @@
+package fragment;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * LRU cache of PreparedStatements for one JDBC connection.
+ * Reusing the same statement object lets the PostgreSQL driver keep it
+ * prepared on the server instead of re-parsing and re-planning each call.
+ *
+ * Statements are owned by the cache: callers close their ResultSets but
+ * never the statement itself. Not thread-safe; the connection it belongs to
+ * is only ever used by one thread at a time.
+ */
+public class StatementCache {
+
+    public static final int DEFAULT_SIZE = 64;
+
+    private final Connection connection;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public StatementCache(Connection connection, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Statement cache size must be positive: " + maxSize);
+        }
+        this.connection = connection;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > maxSize) {
+                    closeQuietly(eldest.getValue());
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Return the cached statement for this SQL, preparing it on first use.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement pstmt = statements.get(sql);
+        if (pstmt != null && !pstmt.isClosed()) {
+            hits++;
+            return pstmt;
+        }
+
+        misses++;
+        pstmt = connection.prepareStatement(sql);
+        statements.put(sql, pstmt);
+        return pstmt;
+    }
+
+    /**
+     * Close and forget every cached statement, e.g. when the connection is replaced.
+     */
+    public void invalidate() {
+        for (PreparedStatement pstmt : statements.values()) {
+            closeQuietly(pstmt);
+        }
+        statements.clear();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    private static void closeQuietly(PreparedStatement pstmt) {
+        try {
+            pstmt.close();
+        } catch (SQLException e) {
+            // Statement is being dropped anyway
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package fragment;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Fixed array of locks shared out by key hash. Callers holding the same key always
+ * get the same lock, while unrelated keys rarely collide, so per-key mutual exclusion
+ * costs no allocation and no map of live keys.
+ */
+public class StripedLocks {
+
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    /**
+     * @param stripes number of locks, rounded up to a power of two
+     */
+    public StripedLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+    }
+
+    public Lock forKey(String key) {
+        return locks[stripe(key)];
+    }
+
+    /**
+     * The distinct locks covering all keys, in stripe order. Callers that take several
+     * locks take them in this order, so two of them can never deadlock.
+     */
+    public List<Lock> forKeys(Collection<String> keys) {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (String key : keys) {
+            stripes.add(stripe(key));
+        }
+        List<Lock> result = new ArrayList<>(stripes.size());
+        for (int stripe : stripes) {
+            result.add(locks[stripe]);
+        }
+        return result;
+    }
+
+    private int stripe(String key) {
+        int h = key.hashCode();
+        // Spread the high bits so ids differing only in their prefix still scatter
+        h ^= (h >>> 16);
+        return h & mask;
+    }
+
+    public int size() {
+        return locks.length;
+    }
+}
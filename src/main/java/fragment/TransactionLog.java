@@ -0,0 +1,141 @@
+package fragment;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Coordinator log of two-phase commits, one text record per line:
+ *
+ *   COORDINATOR 5f3a9c1e       first line, names this client's prepared transactions
+ *   COMMIT 1718000000123 0,2   decision to commit, forced to disk before phase two
+ *   DONE 1718000000123         every participant committed
+ *
+ * Presumed abort: a transaction prepared on the fragments with no COMMIT record was
+ * never decided and is rolled back by recovery. Only COMMIT is forced. A lost DONE
+ * only makes recovery look again and find nothing left to commit.
+ */
+class TransactionLog implements Closeable {
+
+    private final Path path;
+    private final String coordinatorId;
+    private final Map<Long, List<Integer>> pending = new LinkedHashMap<>();
+    private FileChannel channel;
+
+    TransactionLog(Path path) throws IOException {
+        this.path = path;
+        String id = null;
+        if (Files.exists(path)) {
+            // Only complete lines: a crash mid-append leaves a torn last record that
+            // was never forced, so its transaction was never decided
+            String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            content = content.substring(0, content.lastIndexOf('\n') + 1);
+            for (String line : content.split("\n")) {
+                String[] parts = line.trim().split(" ");
+                switch (parts[0]) {
+                    case "COORDINATOR":
+                        id = parts[1];
+                        break;
+                    case "COMMIT":
+                        pending.put(Long.parseLong(parts[1]), parseFragments(parts[2]));
+                        break;
+                    case "DONE":
+                        pending.remove(Long.parseLong(parts[1]));
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        if (id == null) {
+            id = String.format("%08x", new Random().nextInt());
+        }
+        this.coordinatorId = id;
+        rewrite();
+    }
+
+    String getCoordinatorId() {
+        return coordinatorId;
+    }
+
+    /**
+     * Record the decision to commit. Returns once it is on disk.
+     */
+    synchronized void logCommit(long txId, Collection<Integer> fragmentIds) throws IOException {
+        StringJoiner fragments = new StringJoiner(",");
+        for (Integer fragmentId : fragmentIds) {
+            fragments.add(String.valueOf(fragmentId));
+        }
+        append("COMMIT " + txId + " " + fragments + "\n");
+        channel.force(false);
+        pending.put(txId, new ArrayList<>(fragmentIds));
+    }
+
+    synchronized void logDone(long txId) throws IOException {
+        pending.remove(txId);
+        append("DONE " + txId + "\n");
+    }
+
+    /**
+     * Transactions decided as committed but not yet known to be committed everywhere.
+     */
+    synchronized Map<Long, List<Integer>> getPendingCommits() {
+        return new LinkedHashMap<>(pending);
+    }
+
+    /**
+     * Drop the records of finished transactions.
+     */
+    synchronized void compact() throws IOException {
+        rewrite();
+    }
+
+    private void rewrite() throws IOException {
+        StringBuilder content = new StringBuilder("COORDINATOR " + coordinatorId + "\n");
+        for (Map.Entry<Long, List<Integer>> entry : pending.entrySet()) {
+            StringJoiner fragments = new StringJoiner(",");
+            for (Integer fragmentId : entry.getValue()) {
+                fragments.add(String.valueOf(fragmentId));
+            }
+            content.append("COMMIT ").append(entry.getKey()).append(' ').append(fragments).append('\n');
+        }
+
+        // Write a new file and rename it over the old one, so a crash leaves either intact
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void append(String record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static List<Integer> parseFragments(String list) {
+        List<Integer> fragmentIds = new ArrayList<>();
+        for (String id : list.split(",")) {
+            fragmentIds.add(Integer.parseInt(id));
+        }
+        return fragmentIds;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,290 @@
+package fragment;
+import java.io.IOException;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Atomic commit of a transaction spanning fragments, with the client as coordinator.
+ *
+ * Phase one runs each fragment's operations and ends them with PREPARE TRANSACTION
+ * (all fragments in parallel, one round-trip each). If every fragment prepared, the
+ * decision is forced to the TransactionLog and phase two runs COMMIT PREPARED
+ * everywhere. Otherwise the prepared fragments get ROLLBACK PREPARED. A fragment that
+ * cannot be reached in phase two keeps its transaction prepared, holding its row
+ * locks, and is retried in the background with backoff. After a client crash,
+ * recover() commits what the log decided and rolls back everything else.
+ *
+ * Prepared transactions are named "sf_<coordinator>_<txId>_<fragmentId>" so each
+ * client only resolves its own. Fragments need max_prepared_transactions > 0.
+ */
+class TwoPhaseCommit {
+
+    private static final String PREPARED_SQL =
+            "SELECT gid FROM pg_prepared_xacts WHERE starts_with(gid, ?) AND database = current_database()";
+    // "prepared transaction with identifier ... does not exist": already resolved
+    private static final String UNDEFINED_OBJECT = "42704";
+    private static final long RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 30000;
+
+    private interface FragmentWork {
+        void run(int fragmentId) throws SQLException;
+    }
+
+    private final FragmentClient client;
+    private final TransactionLog log;
+    private final ScheduledExecutorService retryExecutor;
+    private final Runnable onLateCommit;
+    private final String gidPrefix;
+    // Ids keep growing across restarts, so a new transaction never reuses a pending one's
+    private final AtomicLong nextTxId = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong aborted = new AtomicLong();
+    private final AtomicLong inDoubt = new AtomicLong();
+
+    /**
+     * @param onLateCommit run when a fragment finally commits after commit() returned
+     */
+    TwoPhaseCommit(FragmentClient client, TransactionLog log, ScheduledExecutorService retryExecutor,
+                   Runnable onLateCommit) {
+        this.client = client;
+        this.log = log;
+        this.retryExecutor = retryExecutor;
+        this.onLateCommit = onLateCommit;
+        this.gidPrefix = "sf_" + log.getCoordinatorId() + "_";
+    }
+
+    /**
+     * Commit the operations grouped by fragment. Throws if the transaction was rolled
+     * back; returns normally once it is decided as committed, even if some fragments
+     * still have to be told.
+     */
+    void commit(Map<Integer, List<FragmentTransaction.Op>> byFragment) throws SQLException {
+        long txId = nextTxId.incrementAndGet();
+        List<Integer> fragmentIds = new ArrayList<>(byFragment.keySet());
+
+        // Phase one: every fragment applies its operations and prepares
+        List<SQLException> prepares = onEach(fragmentIds, fragmentId -> {
+            PooledConnection pooled = client.borrow(fragmentId);
+            try {
+                FragmentTransaction.execute(pooled, byFragment.get(fragmentId),
+                        "PREPARE TRANSACTION '" + gid(txId, fragmentId) + "'");
+            } finally {
+                pooled.release();
+            }
+        });
+
+        SQLException failure = null;
+        List<Integer> maybePrepared = new ArrayList<>();
+        for (int i = 0; i < fragmentIds.size(); i++) {
+            SQLException e = prepares.get(i);
+            if (e == null || isConnectionFailure(e)) {
+                maybePrepared.add(fragmentIds.get(i));
+            }
+            if (e != null && failure == null) {
+                failure = e;
+            }
+        }
+
+        // The commit point
+        if (failure == null) {
+            try {
+                log.logCommit(txId, fragmentIds);
+            } catch (IOException e) {
+                failure = new SQLException("Could not log the commit decision", e);
+            }
+        }
+
+        if (failure != null) {
+            aborted.incrementAndGet();
+            List<Integer> left = finish(txId, maybePrepared, false);
+            if (!left.isEmpty()) {
+                retry(txId, left, false, RETRY_MILLIS);
+            }
+            throw failure;
+        }
+
+        // Phase two
+        committed.incrementAndGet();
+        List<Integer> left = finish(txId, fragmentIds, true);
+        if (left.isEmpty()) {
+            logDone(txId);
+        } else {
+            inDoubt.incrementAndGet();
+            System.out.println("Transaction " + txId + " committed, frag_" + left + " pending");
+            retry(txId, left, true, RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * Resolve every transaction this coordinator left prepared on the fragments.
+     * Must not overlap commit(): a transaction between its two phases would be
+     * rolled back. Returns the number of prepared transactions resolved.
+     */
+    int recover() throws IOException {
+        Map<Long, List<Integer>> decided = log.getPendingCommits();
+        Set<Long> unfinished = new HashSet<>();
+        int resolved = 0;
+
+        for (int fragmentId : client.getFragmentIds()) {
+            List<String> gids;
+            try {
+                gids = prepared(fragmentId);
+            } catch (SQLException e) {
+                // Unreachable: whatever was decided for it stays pending
+                System.out.println("Could not recover transactions on frag_" + fragmentId + ": " + e.getMessage());
+                for (Map.Entry<Long, List<Integer>> entry : decided.entrySet()) {
+                    if (entry.getValue().contains(fragmentId)) {
+                        unfinished.add(entry.getKey());
+                    }
+                }
+                continue;
+            }
+
+            for (String gid : gids) {
+                long txId = Long.parseLong(gid.substring(gidPrefix.length(), gid.lastIndexOf('_')));
+                boolean commit = decided.containsKey(txId);
+                try {
+                    execute(fragmentId, (commit ? "COMMIT" : "ROLLBACK") + " PREPARED '" + gid + "'");
+                    resolved++;
+                } catch (SQLException e) {
+                    if (!UNDEFINED_OBJECT.equals(e.getSQLState())) {
+                        e.printStackTrace();
+                        if (commit) {
+                            unfinished.add(txId);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (Long txId : decided.keySet()) {
+            if (!unfinished.contains(txId)) {
+                log.logDone(txId);
+            }
+        }
+        log.compact();
+        return resolved;
+    }
+
+    private List<String> prepared(int fragmentId) throws SQLException {
+        PooledConnection pooled = client.borrow(fragmentId);
+        try {
+            PreparedStatement pstmt = pooled.prepare(PREPARED_SQL);
+            pstmt.setString(1, gidPrefix);
+            List<String> gids = new ArrayList<>();
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                gids.add(rs.getString(1));
+            }
+            rs.close();
+            return gids;
+        } finally {
+            pooled.release();
+        }
+    }
+
+    /**
+     * Send COMMIT PREPARED or ROLLBACK PREPARED to the fragments. Returns those that
+     * could not be told.
+     */
+    private List<Integer> finish(long txId, List<Integer> fragmentIds, boolean commit) {
+        String verb = commit ? "COMMIT PREPARED '" : "ROLLBACK PREPARED '";
+        List<SQLException> outcomes = onEach(fragmentIds, fragmentId ->
+                execute(fragmentId, verb + gid(txId, fragmentId) + "'"));
+
+        List<Integer> left = new ArrayList<>();
+        for (int i = 0; i < fragmentIds.size(); i++) {
+            SQLException e = outcomes.get(i);
+            if (e != null && !UNDEFINED_OBJECT.equals(e.getSQLState())) {
+                left.add(fragmentIds.get(i));
+            }
+        }
+        return left;
+    }
+
+    private void retry(long txId, List<Integer> fragmentIds, boolean commit, long delayMillis) {
+        try {
+            retryExecutor.schedule(() -> {
+                List<Integer> left = finish(txId, fragmentIds, commit);
+                if (!left.isEmpty()) {
+                    retry(txId, left, commit, Math.min(MAX_RETRY_MILLIS, delayMillis * 2));
+                    return;
+                }
+                System.out.println("Transaction " + txId + " resolved on frag_" + fragmentIds);
+                if (commit) {
+                    logDone(txId);
+                    onLateCommit.run();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Client closed: recovery finishes it on the next start
+        }
+    }
+
+    private void execute(int fragmentId, String sql) throws SQLException {
+        PooledConnection pooled = client.borrow(fragmentId);
+        try (Statement stmt = pooled.connection().createStatement()) {
+            stmt.execute(sql);
+        } finally {
+            pooled.release();
+        }
+    }
+
+    /**
+     * Run the work on every fragment in parallel; the outcome per fragment is null
+     * on success, in the order of fragmentIds.
+     */
+    private List<SQLException> onEach(List<Integer> fragmentIds, FragmentWork work) {
+        try {
+            return client.gather(fragmentIds, fragmentId -> {
+                try {
+                    work.run(fragmentId);
+                    return null;
+                } catch (SQLException e) {
+                    return e;
+                }
+            });
+        } catch (Exception e) {
+            // Interrupted while waiting: nothing is known about any fragment
+            return Collections.nCopies(fragmentIds.size(), new SQLException("Interrupted", e));
+        }
+    }
+
+    private void logDone(long txId) {
+        try {
+            log.logDone(txId);
+        } catch (IOException e) {
+            // Recovery finds nothing left to commit and drops the record then
+            e.printStackTrace();
+        }
+    }
+
+    private String gid(long txId, int fragmentId) {
+        return gidPrefix + txId + "_" + fragmentId;
+    }
+
+    /**
+     * The statement may or may not have reached the server.
+     */
+    private static boolean isConnectionFailure(SQLException e) {
+        String state = e.getSQLState();
+        return state == null || state.startsWith("08");
+    }
+
+    void close() {
+        try {
+            log.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "2pc: committed=%d aborted=%d inDoubt=%d pendingInLog=%d",
+                committed.get(), aborted.get(), inDoubt.get(), log.getPendingCommits().size());
+    }
+}
@@ -0,0 +1,56 @@
+package fragment;
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+/**
+ * One virtual thread per fragment call.
+ *
+ * The project still compiles for Java 17, so the Java 21 factory
+ * Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively.
+ */
+class VirtualThreadFragmentExecutor implements FragmentExecutor {
+
+    static final Method FACTORY = findFactory();
+
+    private final ExecutorService executor;
+
+    VirtualThreadFragmentExecutor() {
+        if (FACTORY == null) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later, running "
+                    + System.getProperty("java.version"));
+        }
+        try {
+            this.executor = (ExecutorService) FACTORY.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Could not create a virtual-thread executor", e);
+        }
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    @Override
+    public void ensureParallelism(int parallelism) {
+        // Every call gets its own thread; the connection pools bound the concurrency
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "virtual";
+    }
+
+    private static Method findFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package fragment;
+
+/**
+ * The operations a workload line can invoke. Implemented by the fragmented
+ * client and by the single-database baseline.
+ */
+public interface WorkloadClient {
+
+    void insertStudent(String studentId, String name, int age, String email);
+
+    void insertGrade(String studentId, String courseId, int score);
+
+    void updateGrade(String studentId, String courseId, int newScore);
+
+    void deleteStudentFromCourse(String studentId, String courseId);
+
+    String getStudentProfile(String studentId);
+
+    String getAvgScoreByDept();
+
+    String getAllStudentsWithMostCourses();
+}
@@ -0,0 +1,139 @@
+package fragment;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Executes workload commands asynchronously while keeping the results identical
+ * to a sequential run.
+ *
+ * Commands for one student go to the ordered lane of the fragment that owns the
+ * student, so different fragments make progress concurrently while each student's
+ * commands still run in workload order. READ_SCORE and READ_ALL see every student,
+ * so they wait for all earlier commands and later commands wait for them; a run of
+ * consecutive global reads shares one barrier and executes in parallel.
+ *
+ * Output lines are emitted strictly in workload order. At most maxInFlight commands
+ * are submitted but not yet written out.
+ *
+ * Lanes are picked by the routing in force at submit time, so a rebalance must not
+ * run concurrently with a pipeline.
+ */
+public class WorkloadPipeline implements AutoCloseable {
+
+    private final FragmentClient client;
+    private final Consumer<String> output;
+    private final Semaphore inFlight;
+
+    private final Map<Integer, ExecutorService> laneExecutors = new HashMap<>();
+    private final Map<Integer, CompletableFuture<?>> laneTails = new HashMap<>();
+    private final ExecutorService globalExecutor;
+
+    // Barrier shared by the current run of consecutive global reads, and those reads
+    private CompletableFuture<?> globalDeps;
+    private final List<CompletableFuture<?>> globalRun = new ArrayList<>();
+
+    private final ArrayDeque<CompletableFuture<String>> pendingOutput = new ArrayDeque<>();
+
+    public WorkloadPipeline(FragmentClient client, int maxInFlight, Consumer<String> output) {
+        this.client = client;
+        this.output = output;
+        this.inFlight = new Semaphore(maxInFlight);
+
+        for (int fragmentId : client.getFragmentIds()) {
+            laneExecutors.put(fragmentId, Executors.newSingleThreadExecutor(daemon("pipeline-lane-" + fragmentId)));
+            laneTails.put(fragmentId, CompletableFuture.completedFuture(null));
+        }
+        this.globalExecutor = Executors.newCachedThreadPool(daemon("pipeline-global"));
+    }
+
+    /**
+     * Dispatch one command. Blocks only while maxInFlight commands are outstanding.
+     * Must be called from a single thread.
+     */
+    public void submit(Command command) {
+        // Make room by writing out finished results, waiting on the oldest if needed
+        while (!inFlight.tryAcquire()) {
+            pendingOutput.peekFirst().join();
+            drainCompleted();
+        }
+
+        CompletableFuture<String> result;
+        if (command.getType().isGlobal()) {
+            if (globalDeps == null) {
+                globalDeps = CompletableFuture.allOf(laneTails.values().toArray(new CompletableFuture<?>[0]));
+            }
+            result = globalDeps.thenApplyAsync(ignored -> run(command), globalExecutor);
+            globalRun.add(result);
+        } else {
+            closeGlobalRun();
+            int lane = command.getStudentId() != null ? client.getFragmentId(command.getStudentId())
+                                                      : laneTails.keySet().iterator().next();
+            result = laneTails.get(lane).thenApplyAsync(ignored -> run(command), laneExecutors.get(lane));
+            laneTails.put(lane, result);
+        }
+
+        pendingOutput.addLast(result);
+        drainCompleted();
+    }
+
+    /**
+     * Wait for everything submitted so far and write the remaining output.
+     */
+    public void finish() {
+        while (!pendingOutput.isEmpty()) {
+            pendingOutput.peekFirst().join();
+            drainCompleted();
+        }
+    }
+
+    @Override
+    public void close() {
+        finish();
+        for (ExecutorService lane : laneExecutors.values()) {
+            lane.shutdown();
+        }
+        globalExecutor.shutdown();
+    }
+
+    /**
+     * Later per-student commands must not overtake the global reads just dispatched.
+     */
+    private void closeGlobalRun() {
+        if (globalRun.isEmpty()) {
+            return;
+        }
+        CompletableFuture<?> barrier = CompletableFuture.allOf(globalRun.toArray(new CompletableFuture<?>[0]));
+        for (Integer lane : laneTails.keySet()) {
+            laneTails.put(lane, barrier);
+        }
+        globalRun.clear();
+        globalDeps = null;
+    }
+
+    private void drainCompleted() {
+        while (!pendingOutput.isEmpty() && pendingOutput.peekFirst().isDone()) {
+            String line = pendingOutput.pollFirst().join();
+            if (line != null) {
+                output.accept(line);
+            }
+            inFlight.release();
+        }
+    }
+
+    private String run(Command command) {
+        try {
+            return command.execute(client);
+        } catch (Exception e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,238 @@
+package fragment;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Groups mutations per fragment and sends them as JDBC batches inside a single
+ * transaction, so a run of writes costs one round-trip and one commit instead
+ * of one of each per row.
+ *
+ * A fragment's queue is flushed when it reaches the batch size, when its oldest
+ * write has waited longer than the linger time, or explicitly before a read.
+ * Writes to one fragment are always applied in the order they were queued.
+ */
+public class WriteBatcher {
+
+    private final Map<Integer, FragmentConnectionPool> pools;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final Map<Integer, FragmentQueue> queues = new ConcurrentHashMap<>();
+
+    public WriteBatcher(Map<Integer, FragmentConnectionPool> pools, int batchSize, long lingerMillis) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.pools = pools;
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    }
+
+    /**
+     * Queue a write for the fragment, flushing it if the batch is now full.
+     */
+    public void add(int fragmentId, String sql, Object... params) throws SQLException {
+        FragmentQueue queue = queues.computeIfAbsent(fragmentId, FragmentQueue::new);
+        queue.lock.lock();
+        try {
+            if (queue.pending.isEmpty()) {
+                queue.oldestNanos = System.nanoTime();
+            }
+            queue.pending.add(new PendingWrite(sql, params));
+            if (queue.pending.size() >= batchSize) {
+                flush(queue);
+            }
+        } finally {
+            queue.lock.unlock();
+        }
+    }
+
+    /**
+     * Apply every queued write for one fragment.
+     */
+    public void flush(int fragmentId) throws SQLException {
+        FragmentQueue queue = queues.get(fragmentId);
+        if (queue == null) {
+            return;
+        }
+        queue.lock.lock();
+        try {
+            flush(queue);
+        } finally {
+            queue.lock.unlock();
+        }
+    }
+
+    /**
+     * Apply every queued write on every fragment.
+     */
+    public void flushAll() throws SQLException {
+        for (int fragmentId : queues.keySet()) {
+            flush(fragmentId);
+        }
+    }
+
+    /**
+     * Flush the fragments whose oldest queued write has exceeded the linger time.
+     * Called periodically from a background thread.
+     */
+    public void flushExpired() {
+        long now = System.nanoTime();
+        for (FragmentQueue queue : queues.values()) {
+            if (!queue.lock.tryLock()) {
+                continue; // Someone is already adding or flushing
+            }
+            try {
+                if (!queue.pending.isEmpty() && now - queue.oldestNanos >= lingerNanos) {
+                    flush(queue);
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            } finally {
+                queue.lock.unlock();
+            }
+        }
+    }
+
+    public int pendingCount() {
+        int count = 0;
+        for (FragmentQueue queue : queues.values()) {
+            count += queue.pending.size();
+        }
+        return count;
+    }
+
+    private void flush(FragmentQueue queue) throws SQLException {
+        if (queue.pending.isEmpty()) {
+            return;
+        }
+
+        // If the fragment is unreachable the writes stay queued for the next attempt
+        PooledConnection pooled = pools.get(queue.fragmentId).borrow();
+        try {
+            List<PendingWrite> writes = new ArrayList<>(queue.pending);
+            queue.pending.clear();
+
+            try {
+                executeAsBatches(pooled, writes);
+            } catch (SQLException e) {
+                if (!SqlStates.isDataError(e)) {
+                    // The transaction was rolled back, so nothing of it landed: put the
+                    // writes back in front and let the caller see the failure
+                    requeue(queue, writes);
+                    if (SqlStates.isConnectionError(e)) {
+                        pooled.markBroken();
+                    }
+                    throw e;
+                }
+                // One bad row aborts the whole transaction: fall back to row-at-a-time
+                // so every other write still lands, exactly as in unbatched mode
+                int applied = executeOneByOne(pooled, writes);
+                if (applied < writes.size()) {
+                    requeue(queue, writes.subList(applied, writes.size()));
+                    pooled.markBroken();
+                    throw new SQLException("Lost the connection to frag_" + queue.fragmentId
+                            + " with " + (writes.size() - applied) + " writes still queued", "08006");
+                }
+            }
+        } finally {
+            pooled.release();
+        }
+    }
+
+    private static void requeue(FragmentQueue queue, List<PendingWrite> writes) {
+        // Writes queued since keep their place behind these; none can be, as add() waits
+        // for the lock we hold, but the order must survive either way
+        queue.pending.addAll(0, writes);
+    }
+
+    /**
+     * Send consecutive writes with the same SQL as one JDBC batch, all in one transaction.
+     */
+    private static void executeAsBatches(PooledConnection pooled, List<PendingWrite> writes) throws SQLException {
+        Connection conn = pooled.connection();
+        conn.setAutoCommit(false);
+        try {
+            int i = 0;
+            while (i < writes.size()) {
+                String sql = writes.get(i).sql;
+                PreparedStatement pstmt = pooled.prepare(sql);
+
+                // Keep queue order: only adjacent writes of the same statement share a batch
+                while (i < writes.size() && writes.get(i).sql.equals(sql)) {
+                    writes.get(i).bind(pstmt);
+                    pstmt.addBatch();
+                    i++;
+                }
+                pstmt.executeBatch();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            // On a dead connection the rollback fails too; the original error is the one to report
+            try {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            } catch (SQLException rollbackFailure) {
+                e.addSuppressed(rollbackFailure);
+            }
+            throw e;
+        }
+        conn.setAutoCommit(true);
+    }
+
+    /**
+     * Apply the writes one statement at a time, reporting and skipping rejected rows.
+     *
+     * @return how many writes were attempted before the connection failed; all of them
+     *         if it did not
+     */
+    private static int executeOneByOne(PooledConnection pooled, List<PendingWrite> writes) {
+        for (int i = 0; i < writes.size(); i++) {
+            PendingWrite write = writes.get(i);
+            try {
+                PreparedStatement pstmt = pooled.prepare(write.sql);
+                pstmt.clearBatch();
+                write.bind(pstmt);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                if (SqlStates.isConnectionError(e)) {
+                    return i;
+                }
+            }
+        }
+        return writes.size();
+    }
+
+    private static class FragmentQueue {
+        final int fragmentId;
+        final ReentrantLock lock = new ReentrantLock();
+        final List<PendingWrite> pending = new ArrayList<>();
+        long oldestNanos;
+
+        FragmentQueue(int fragmentId) {
+            this.fragmentId = fragmentId;
+        }
+    }
+
+    private static class PendingWrite {
+        final String sql;
+        final Object[] params;
+
+        PendingWrite(String sql, Object[] params) {
+            this.sql = sql;
+            this.params = params;
+        }
+
+        void bind(PreparedStatement pstmt) throws SQLException {
+            for (int i = 0; i < params.length; i++) {
+                if (params[i] instanceof Integer) {
+                    pstmt.setInt(i + 1, (Integer) params[i]);
+                } else {
+                    pstmt.setString(i + 1, (String) params[i]);
+                }
+            }
+        }
+    }
+}
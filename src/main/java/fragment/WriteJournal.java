@@ -0,0 +1,687 @@
+package fragment;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Local write-ahead journal: a mutation is acknowledged once it is on local disk, and
+ * background appliers send it to its fragment afterwards.
+ *
+ * Entries are appended to memory-mapped segment files. The thread that finds no sync
+ * running forces everything appended so far, so concurrent writers share one fsync
+ * (group commit). Each fragment's entries are applied in journal order, as JDBC
+ * batches in one transaction together with the fragment's JournalProgress row. That
+ * row holds the last applied sequence number of this journal, so after a crash the
+ * entries are replayed from disk and those already applied are skipped: each is
+ * applied exactly once. Segments are deleted once all their entries are applied.
+ *
+ * Reads must not miss acknowledged writes, so flush(fragmentId) applies the
+ * fragment's backlog first, as WriteBatcher does.
+ */
+public class WriteJournal implements Closeable {
+
+    private static final String CREATE_PROGRESS_SQL =
+            "CREATE TABLE IF NOT EXISTS JournalProgress (journal_id VARCHAR(32) PRIMARY KEY, applied_seq BIGINT NOT NULL)";
+    private static final String SELECT_PROGRESS_SQL =
+            "SELECT applied_seq FROM JournalProgress WHERE journal_id = ?";
+    private static final String UPSERT_PROGRESS_SQL =
+            "INSERT INTO JournalProgress (journal_id, applied_seq) VALUES (?, ?) " +
+            "ON CONFLICT (journal_id) DO UPDATE SET applied_seq = EXCLUDED.applied_seq";
+
+    private static final String ID_FILE = "journal.id";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Entry header: body length and CRC32C of the body
+    private static final int HEADER_BYTES = 8;
+
+    private final Path directory;
+    private final Map<Integer, FragmentConnectionPool> pools;
+    private final int batchSize;
+    private final int segmentBytes;
+    private final String journalId;
+    private final Map<Integer, FragmentQueue> queues = new ConcurrentHashMap<>();
+    private final ExecutorService appliers;
+
+    // Appends: one writer at a time into the current segment
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private Segment current;
+    private long nextSeq = 1;
+    private volatile long appendedSeq;
+
+    // Group commit: one sync at a time, covering every entry appended when it started
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition synced = syncLock.newCondition();
+    private boolean syncing;
+    private volatile long durableSeq;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * Open the journal in the directory, queueing every entry a previous run left
+     * there. Entries already applied are skipped when their fragment is drained.
+     *
+     * @param batchSize    entries per apply transaction
+     * @param segmentBytes size of each mapped segment file
+     */
+    public WriteJournal(Path directory, Map<Integer, FragmentConnectionPool> pools, int batchSize, int segmentBytes)
+            throws IOException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.directory = directory;
+        this.pools = pools;
+        this.batchSize = batchSize;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+
+        Path idFile = directory.resolve(ID_FILE);
+        if (!Files.exists(idFile)) {
+            // Written aside and renamed, so a crash never leaves a partial id behind
+            Path tmpFile = directory.resolve(ID_FILE + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(
+                        String.format("%016x", new Random().nextLong()).getBytes(StandardCharsets.UTF_8)));
+                channel.force(true);
+            }
+            Files.move(tmpFile, idFile, StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory(directory);
+        }
+        this.journalId = new String(Files.readAllBytes(idFile), StandardCharsets.UTF_8).trim();
+
+        this.appliers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "journal-applier");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        recover();
+    }
+
+    /**
+     * Append a write for the fragment and return once it is durable on local disk.
+     */
+    public void append(int fragmentId, String sql, Object... params) throws IOException {
+        byte[] body = encode(fragmentId, sql, params);
+        if (HEADER_BYTES + 8 + body.length > segmentBytes) {
+            throw new IOException("Journal entry of " + body.length + " bytes exceeds the segment size");
+        }
+
+        FragmentQueue queue = queues.computeIfAbsent(fragmentId, FragmentQueue::new);
+        long seq;
+        appendLock.lock();
+        try {
+            seq = nextSeq++;
+            if (current.remaining() < HEADER_BYTES + 8 + body.length) {
+                rollSegment(seq);
+            }
+            current.write(seq, body);
+            // Queue order equals journal order, so each fragment applies in sequence
+            current.unapplied.incrementAndGet();
+            queue.pending.add(new Entry(seq, sql, params, current));
+            appendedSeq = seq;
+        } finally {
+            appendLock.unlock();
+        }
+        appended.incrementAndGet();
+
+        sync(seq);
+        scheduleApply(queue);
+    }
+
+    /**
+     * Force the journal up to at least seq. Whoever finds no sync running forces
+     * everything appended so far; the others wait for it and usually find their
+     * entry covered.
+     */
+    private void sync(long seq) throws IOException {
+        syncLock.lock();
+        try {
+            while (durableSeq < seq) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                syncLock.unlock();
+                long target;
+                try {
+                    Segment segment;
+                    int end;
+                    appendLock.lock();
+                    try {
+                        target = appendedSeq;
+                        segment = current;
+                        end = segment.position;
+                    } finally {
+                        appendLock.unlock();
+                    }
+                    // Earlier segments were forced completely when they were sealed
+                    segment.force(end);
+                    syncs.incrementAndGet();
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    synced.signalAll();
+                }
+                durableSeq = Math.max(durableSeq, target);
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Seal the full segment and start a new one. Called with appendLock held.
+     */
+    private void rollSegment(long firstSeq) throws IOException {
+        Segment full = current;
+        full.force(full.position);
+        current = Segment.create(segmentPath(firstSeq), segmentBytes);
+        full.seal();
+    }
+
+    /**
+     * Apply the fragment's backlog now, on the calling thread.
+     */
+    public void flush(int fragmentId) throws SQLException {
+        FragmentQueue queue = queues.get(fragmentId);
+        if (queue != null) {
+            drain(queue);
+        }
+    }
+
+    public void flushAll() throws SQLException {
+        for (FragmentQueue queue : queues.values()) {
+            drain(queue);
+        }
+    }
+
+    /**
+     * Retry fragments whose backlog could not be applied, e.g. while they were down.
+     * Called periodically from a background thread.
+     */
+    public void retryPending() {
+        for (FragmentQueue queue : queues.values()) {
+            if (!queue.pending.isEmpty()) {
+                scheduleApply(queue);
+            }
+        }
+    }
+
+    public long pendingCount() {
+        long count = 0;
+        for (FragmentQueue queue : queues.values()) {
+            count += queue.pending.size();
+        }
+        return count;
+    }
+
+    private void scheduleApply(FragmentQueue queue) {
+        if (!queue.scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            appliers.execute(() -> {
+                queue.scheduled.set(false);
+                try {
+                    drain(queue);
+                } catch (SQLException e) {
+                    // Stays queued for retryPending() or the next read
+                    System.out.println("Journal apply to frag_" + queue.fragmentId + " failed: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queue.scheduled.set(false);
+        }
+    }
+
+    private void drain(FragmentQueue queue) throws SQLException {
+        queue.lock.lock();
+        try {
+            while (!queue.pending.isEmpty()) {
+                // Only durable entries: a fragment's JournalProgress must never name a
+                // sequence number the journal could lose and hand out again
+                long durable = durableSeq;
+                List<Entry> batch = new ArrayList<>(batchSize);
+                for (Entry entry : queue.pending) {
+                    if (entry.seq > durable || batch.size() == batchSize) {
+                        break;
+                    }
+                    batch.add(entry);
+                }
+                if (batch.isEmpty()) {
+                    // The appender schedules another drain once its sync completes
+                    return;
+                }
+
+                FragmentConnectionPool pool = pools.get(queue.fragmentId);
+                if (pool == null) {
+                    throw new SQLException("No connection pool for frag_" + queue.fragmentId);
+                }
+                PooledConnection pooled = pool.borrow();
+                try {
+                    if (queue.appliedSeq < 0) {
+                        queue.appliedSeq = loadAppliedSeq(pooled);
+                    }
+                    try {
+                        applyBatch(pooled, queue, batch);
+                    } catch (SQLException e) {
+                        if (!SqlStates.isDataError(e)) {
+                            throw e;
+                        }
+                        // One bad row aborts the whole transaction: apply row by row so
+                        // every other write still lands, exactly as in unjournaled mode
+                        applyOneByOne(pooled, queue, batch);
+                    }
+                } catch (SQLException e) {
+                    // The commit may or may not have happened: ask the fragment again
+                    queue.appliedSeq = -1;
+                    throw e;
+                } finally {
+                    pooled.release();
+                }
+            }
+        } finally {
+            queue.lock.unlock();
+        }
+    }
+
+    private long loadAppliedSeq(PooledConnection pooled) throws SQLException {
+        try (Statement stmt = pooled.connection().createStatement()) {
+            stmt.execute(CREATE_PROGRESS_SQL);
+        }
+        PreparedStatement pstmt = pooled.prepare(SELECT_PROGRESS_SQL);
+        pstmt.setString(1, journalId);
+        ResultSet rs = pstmt.executeQuery();
+        long seq = rs.next() ? rs.getLong(1) : 0;
+        rs.close();
+        return seq;
+    }
+
+    /**
+     * Apply the batch and advance JournalProgress in one transaction, sending
+     * consecutive entries with the same SQL as one JDBC batch.
+     */
+    private void applyBatch(PooledConnection pooled, FragmentQueue queue, List<Entry> batch) throws SQLException {
+        List<Entry> fresh = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            if (entry.seq > queue.appliedSeq) {
+                fresh.add(entry);
+            }
+        }
+
+        if (!fresh.isEmpty()) {
+            Connection conn = pooled.connection();
+            conn.setAutoCommit(false);
+            try {
+                int i = 0;
+                while (i < fresh.size()) {
+                    String sql = fresh.get(i).sql;
+                    PreparedStatement pstmt = pooled.prepare(sql);
+                    while (i < fresh.size() && fresh.get(i).sql.equals(sql)) {
+                        fresh.get(i).bind(pstmt);
+                        pstmt.addBatch();
+                        i++;
+                    }
+                    pstmt.executeBatch();
+                }
+                updateProgress(pooled, fresh.get(fresh.size() - 1).seq);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            queue.appliedSeq = fresh.get(fresh.size() - 1).seq;
+        }
+
+        applied.addAndGet(fresh.size());
+        skipped.addAndGet(batch.size() - fresh.size());
+        for (int i = 0; i < batch.size(); i++) {
+            queue.pending.poll().markApplied();
+        }
+    }
+
+    /**
+     * Each entry in its own transaction with the progress row. An entry the fragment
+     * rejects is reported and skipped; anything else stops here and stays queued.
+     */
+    private void applyOneByOne(PooledConnection pooled, FragmentQueue queue, List<Entry> batch) throws SQLException {
+        Connection conn = pooled.connection();
+        for (Entry entry : batch) {
+            if (entry.seq > queue.appliedSeq) {
+                conn.setAutoCommit(false);
+                try {
+                    try {
+                        PreparedStatement pstmt = pooled.prepare(entry.sql);
+                        pstmt.clearBatch();
+                        entry.bind(pstmt);
+                        pstmt.executeUpdate();
+                        applied.incrementAndGet();
+                    } catch (SQLException e) {
+                        if (!SqlStates.isDataError(e)) {
+                            throw e;
+                        }
+                        e.printStackTrace();
+                        conn.rollback();
+                    }
+                    updateProgress(pooled, entry.seq);
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+                queue.appliedSeq = entry.seq;
+            } else {
+                skipped.incrementAndGet();
+            }
+            queue.pending.poll().markApplied();
+        }
+    }
+
+    private void updateProgress(PooledConnection pooled, long seq) throws SQLException {
+        PreparedStatement pstmt = pooled.prepare(UPSERT_PROGRESS_SQL);
+        pstmt.setString(1, journalId);
+        pstmt.setLong(2, seq);
+        pstmt.executeUpdate();
+    }
+
+    /**
+     * Queue the entries of segments left by a previous run, in journal order.
+     */
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        // Zero-padded first sequence numbers sort by name
+        Collections.sort(files);
+
+        List<Segment> segments = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        for (Path file : files) {
+            Segment segment = Segment.open(file);
+            // The name holds the segment's first sequence number, so even a segment
+            // that is empty, or whose entries were all applied, keeps the high-water mark
+            String name = file.getFileName().toString();
+            long firstSeq = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            nextSeq = Math.max(nextSeq, firstSeq + 1);
+            int count = 0;
+            ByteBuffer buffer = segment.buffer.duplicate();
+            while (buffer.remaining() >= HEADER_BYTES + 8) {
+                int length = buffer.getInt();
+                int crc = buffer.getInt();
+                // A zero length is unwritten space, a bad checksum a write cut short by a crash
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                buffer.get(body);
+                CRC32C checksum = new CRC32C();
+                checksum.update(body);
+                if ((int) checksum.getValue() != crc) {
+                    break;
+                }
+
+                ByteBuffer in = ByteBuffer.wrap(body);
+                long seq = in.getLong();
+                int fragmentId = in.getInt();
+                String sql = readString(in);
+                Object[] params = new Object[in.get()];
+                for (int i = 0; i < params.length; i++) {
+                    byte tag = in.get();
+                    params[i] = tag == 'I' ? (Object) in.getInt() : tag == 'S' ? readString(in) : null;
+                }
+
+                segment.unapplied.incrementAndGet();
+                queues.computeIfAbsent(fragmentId, FragmentQueue::new).pending.add(new Entry(seq, sql, params, segment));
+                nextSeq = Math.max(nextSeq, seq + 1);
+                count++;
+            }
+            segments.add(segment);
+            counts.add(count);
+        }
+        appendedSeq = nextSeq - 1;
+        durableSeq = appendedSeq;
+
+        // Start the new segment before the old ones may be deleted, so a file naming
+        // the high-water mark exists at every moment
+        appendLock.lock();
+        try {
+            current = Segment.create(segmentPath(nextSeq), segmentBytes);
+        } finally {
+            appendLock.unlock();
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            segments.get(i).seal();
+            if (counts.get(i) > 0) {
+                System.out.println("Journal: replaying " + counts.get(i) + " entries from " + segments.get(i).path.getFileName());
+            }
+        }
+        for (FragmentQueue queue : queues.values()) {
+            scheduleApply(queue);
+        }
+    }
+
+    /**
+     * Make the directory's entries durable, so a file just created or renamed in it
+     * is still there after a crash. Forcing the file itself does not cover its name.
+     */
+    private static void forceDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private Path segmentPath(long firstSeq) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Body after the sequence number: fragment, SQL and parameters (int or string).
+     */
+    private static byte[] encode(int fragmentId, String sql, Object[] params) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(fragmentId);
+            writeString(out, sql);
+            out.writeByte(params.length);
+            for (Object param : params) {
+                if (param instanceof Integer) {
+                    out.writeByte('I');
+                    out.writeInt((Integer) param);
+                } else if (param != null) {
+                    out.writeByte('S');
+                    writeString(out, param.toString());
+                } else {
+                    out.writeByte('N');
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Cannot happen for an in-memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] utf8 = new byte[in.getInt()];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        appliers.shutdown();
+        appendLock.lock();
+        try {
+            current.force(current.position);
+            current.channel.close();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        long syncCount = syncs.get();
+        return String.format(Locale.US, "journal %s: appended=%d syncs=%d (%.1f entries/sync) applied=%d skipped=%d pending=%d",
+                journalId, appended.get(), syncCount, syncCount == 0 ? 0.0 : (double) appended.get() / syncCount,
+                applied.get(), skipped.get(), pendingCount());
+    }
+
+    /**
+     * One mapped segment file. Entries are [length][crc32c][seq, body].
+     */
+    private static class Segment {
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final AtomicInteger unapplied = new AtomicInteger();
+        int position;
+        int forced;
+        volatile boolean sealed;
+
+        private Segment(Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path path, int size) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                // Mapping grew the file: make its size and its name durable before any
+                // append to it is acknowledged
+                channel.force(true);
+                forceDirectory(path.getParent());
+                return new Segment(path, channel, buffer);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        static Segment open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            return new Segment(path, channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+
+        int remaining() {
+            return buffer.capacity() - position;
+        }
+
+        /**
+         * Called with the journal's appendLock held.
+         */
+        void write(long seq, byte[] body) {
+            CRC32C checksum = new CRC32C();
+            ByteBuffer seqBytes = ByteBuffer.allocate(8).putLong(0, seq);
+            checksum.update(seqBytes);
+            checksum.update(body);
+
+            // Absolute puts: a concurrent force() never sees a moving position
+            buffer.putInt(position, 8 + body.length);
+            buffer.putInt(position + 4, (int) checksum.getValue());
+            buffer.putLong(position + HEADER_BYTES, seq);
+            buffer.put(position + HEADER_BYTES + 8, body);
+            position += HEADER_BYTES + 8 + body.length;
+        }
+
+        /**
+         * Write the bytes before end through to disk.
+         */
+        synchronized void force(int end) {
+            if (end > forced) {
+                buffer.force(forced, end - forced);
+                forced = end;
+            }
+        }
+
+        void seal() throws IOException {
+            sealed = true;
+            deleteIfApplied();
+        }
+
+        void deleteIfApplied() {
+            if (sealed && unapplied.get() == 0) {
+                try {
+                    channel.close();
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        final long seq;
+        final String sql;
+        final Object[] params;
+        final Segment segment;
+
+        Entry(long seq, String sql, Object[] params, Segment segment) {
+            this.seq = seq;
+            this.sql = sql;
+            this.params = params;
+            this.segment = segment;
+        }
+
+        void bind(PreparedStatement pstmt) throws SQLException {
+            for (int i = 0; i < params.length; i++) {
+                if (params[i] instanceof Integer) {
+                    pstmt.setInt(i + 1, (Integer) params[i]);
+                } else {
+                    pstmt.setString(i + 1, (String) params[i]);
+                }
+            }
+        }
+
+        void markApplied() {
+            if (segment.unapplied.decrementAndGet() == 0) {
+                segment.deleteIfApplied();
+            }
+        }
+    }
+
+    private static class FragmentQueue {
+        final int fragmentId;
+        final ReentrantLock lock = new ReentrantLock();
+        // Appenders add without taking lock; only the drainer holding it removes
+        final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        // Last sequence number the fragment has applied; -1 until read from the fragment
+        long appliedSeq = -1;
+
+        FragmentQueue(int fragmentId) {
+            this.fragmentId = fragmentId;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package fragment;
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Routing while a rebalance is part way through the key space.
+ */
+class RebalancerTest {
+
+    private final Router from = new ModuloRouter(2);
+    private final Router to = new ModuloRouter(3);
+
+    @Test
+    void routesWithOldRouterBeforeFirstChunk() {
+        Rebalancer rebalancer = new Rebalancer(null, from, to, 100, 0);
+        for (int i = 1; i <= 200; i++) {
+            String key = studentId(i);
+            assertEquals(from.getFragmentId(key), rebalancer.route(key), key);
+        }
+    }
+
+    @Test
+    void cursorKeyBelongsToTheTarget() {
+        // A cursor whose key changes fragment, so routing it the wrong way shows
+        int last = 100;
+        while (from.getFragmentId(studentId(last)) == to.getFragmentId(studentId(last))) {
+            last++;
+        }
+        Rebalancer rebalancer = new Rebalancer(null, from, to, 100, 0);
+        rebalancer.setCursor(studentId(last));
+
+        for (int i = 1; i <= 200; i++) {
+            String key = studentId(i);
+            Router owner = i <= last ? to : from;
+            assertEquals(owner.getFragmentId(key), rebalancer.route(key), key);
+        }
+    }
+
+    @Test
+    void keysJustAboveCursorStayOnSource() {
+        Rebalancer rebalancer = new Rebalancer(null, from, to, 100, 0);
+        String cursor = "IMT_2023_1";
+        rebalancer.setCursor(cursor);
+
+        // Longer keys with the cursor as prefix sort after it, as under COLLATE "C"
+        for (String key : new String[] { cursor + "0", cursor + "00", cursor + "9" }) {
+            assertEquals(from.getFragmentId(key), rebalancer.route(key), key);
+        }
+        assertEquals(to.getFragmentId(cursor), rebalancer.route(cursor));
+        assertEquals(to.getFragmentId("IMT_2023_0"), rebalancer.route("IMT_2023_0"));
+    }
+
+    private static String studentId(int i) {
+        return String.format("IMT_2023_%03d", i);
+    }
+}
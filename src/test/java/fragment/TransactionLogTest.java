@@ -0,0 +1,84 @@
+package fragment;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * What recovery finds in the coordinator log after a restart or a crash.
+ */
+class TransactionLogTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void keepsCoordinatorIdAcrossRestarts() throws Exception {
+        Path path = dir.resolve("2pc.log");
+        String id;
+        try (TransactionLog log = new TransactionLog(path)) {
+            id = log.getCoordinatorId();
+        }
+        try (TransactionLog log = new TransactionLog(path)) {
+            assertEquals(id, log.getCoordinatorId());
+        }
+    }
+
+    @Test
+    void commitWithoutDoneIsPendingAfterRestart() throws Exception {
+        Path path = dir.resolve("2pc.log");
+        try (TransactionLog log = new TransactionLog(path)) {
+            log.logCommit(1, List.of(0, 2));
+            log.logCommit(2, List.of(1));
+            log.logDone(1);
+        }
+        try (TransactionLog log = new TransactionLog(path)) {
+            assertEquals(Map.of(2L, List.of(1)), log.getPendingCommits());
+        }
+    }
+
+    @Test
+    void tornLastRecordWasNeverDecided() throws Exception {
+        Path path = dir.resolve("2pc.log");
+        try (TransactionLog log = new TransactionLog(path)) {
+            log.logCommit(1, List.of(0, 1));
+        }
+        // Crash in the middle of appending the next decision
+        Files.write(path, "COMMIT 2 0,".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (TransactionLog log = new TransactionLog(path)) {
+            assertEquals(Map.of(1L, List.of(0, 1)), log.getPendingCommits());
+            // The torn record is gone, so later records start on a line of their own
+            log.logCommit(3, List.of(2));
+        }
+        try (TransactionLog log = new TransactionLog(path)) {
+            assertEquals(List.of(1L, 3L), new ArrayList<>(log.getPendingCommits().keySet()));
+        }
+    }
+
+    @Test
+    void compactionDropsFinishedTransactions() throws Exception {
+        Path path = dir.resolve("2pc.log");
+        try (TransactionLog log = new TransactionLog(path)) {
+            for (long txId = 1; txId <= 5; txId++) {
+                log.logCommit(txId, List.of(0, 1));
+                if (txId != 4) {
+                    log.logDone(txId);
+                }
+            }
+            log.compact();
+
+            List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+            assertEquals(List.of("COORDINATOR " + log.getCoordinatorId(), "COMMIT 4 0,1"), lines);
+
+            // Appends after a compaction go to the new file
+            log.logDone(4);
+        }
+        try (TransactionLog log = new TransactionLog(path)) {
+            assertTrue(log.getPendingCommits().isEmpty());
+        }
+    }
+}
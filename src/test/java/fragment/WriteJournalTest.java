@@ -0,0 +1,129 @@
+package fragment;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.*;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Replay after a restart. No fragment is reachable, so every entry stays queued.
+ */
+class WriteJournalTest {
+
+    private static final int SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysUnappliedEntriesAfterRestart() throws Exception {
+        try (WriteJournal journal = open()) {
+            append(journal, 0, "IMT_2023_001");
+            append(journal, 1, "IMT_2023_002");
+            append(journal, 0, "IMT_2023_003");
+        }
+        try (WriteJournal journal = open()) {
+            assertEquals(3, journal.pendingCount());
+            // The new segment starts after the last sequence number found
+            assertEquals(List.of(1L, 4L), segments());
+        }
+    }
+
+    @Test
+    void keepsJournalIdAcrossRestarts() throws Exception {
+        open().close();
+        String id = Files.readString(dir.resolve("journal.id"));
+        open().close();
+        assertEquals(id, Files.readString(dir.resolve("journal.id")));
+    }
+
+    @Test
+    void stopsAtTornTail() throws Exception {
+        try (WriteJournal journal = open()) {
+            append(journal, 0, "IMT_2023_001");
+            append(journal, 0, "IMT_2023_002");
+            append(journal, 0, "IMT_2023_003");
+        }
+        // Damage the last byte written: the third entry was cut short by a crash
+        Path segment = dir.resolve(segmentName(1));
+        byte[] bytes = Files.readAllBytes(segment);
+        int last = bytes.length - 1;
+        while (bytes[last] == 0) {
+            last--;
+        }
+        bytes[last] ^= 0x5a;
+        Files.write(segment, bytes);
+
+        try (WriteJournal journal = open()) {
+            assertEquals(2, journal.pendingCount());
+            // The torn entry was never acknowledged, so its number is handed out again
+            assertEquals(List.of(1L, 3L), segments());
+        }
+    }
+
+    @Test
+    void emptySegmentKeepsSequenceNumbering() throws Exception {
+        try (WriteJournal journal = open()) {
+            append(journal, 0, "IMT_2023_001");
+            append(journal, 0, "IMT_2023_002");
+        }
+        open().close();
+        assertEquals(List.of(1L, 3L), segments());
+
+        // The entries were applied and their segment deleted: only the empty segment
+        // started by the last run still tells where numbering stopped
+        Files.delete(dir.resolve(segmentName(1)));
+        try (WriteJournal journal = open()) {
+            assertEquals(0, journal.pendingCount());
+            append(journal, 1, "IMT_2023_003");
+        }
+        try (WriteJournal journal = open()) {
+            assertEquals(1, journal.pendingCount());
+            // Entry 4 sits in segment 4; numbers 1-3 are never reused
+            assertEquals(List.of(4L, 5L), segments());
+        }
+    }
+
+    @Test
+    void rollsIntoNewSegmentWhenFull() throws Exception {
+        int count = 0;
+        try (WriteJournal journal = open()) {
+            while (segments().size() < 3) {
+                append(journal, count % 3, String.format("IMT_2023_%03d", ++count));
+            }
+        }
+        try (WriteJournal journal = open()) {
+            assertEquals(count, journal.pendingCount());
+            List<Long> firstSeqs = segments();
+            assertEquals(count + 1, firstSeqs.get(firstSeqs.size() - 1));
+        }
+    }
+
+    private WriteJournal open() throws Exception {
+        return new WriteJournal(dir, Collections.emptyMap(), 10, SEGMENT_BYTES);
+    }
+
+    private static void append(WriteJournal journal, int fragmentId, String studentId) throws Exception {
+        journal.append(fragmentId, JdbcFragmentStore.INSERT_GRADE_SQL, studentId, "CS101", 80);
+    }
+
+    private static String segmentName(long firstSeq) {
+        return String.format("segment-%020d.log", firstSeq);
+    }
+
+    /**
+     * First sequence numbers of the segment files, in order.
+     */
+    private List<Long> segments() throws Exception {
+        List<Long> firstSeqs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "segment-*.log")) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                firstSeqs.add(Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length())));
+            }
+        }
+        Collections.sort(firstSeqs);
+        return firstSeqs;
+    }
+}